@@ -0,0 +1,474 @@
+/*
+ * Each classification from the GUI starts a JVM and builds the trained HMM
+ * again. This server loads the trained HMMs once, keeps them (and the
+ * PipelineCache) warm and classifies recordings sent on:
+ *
+ *   --stdio            standard input / standard output, as a pipe
+ *   --tcp <port>       a TCP socket on the loopback address only
+ *   --unix <path>      a Unix domain socket (Java 16 and later)
+ *
+ * Every message is a frame: an int with the number of bytes that follow,
+ * then the bytes. Integers and floats are big endian.
+ *
+ * Request:   int id, byte kind, then
+ *              kind 0 (PING)  nothing
+ *              kind 1 (PCM)   int samplingRate, mono signed 16 bits little
+ *                             endian samples (as a capture line gives them)
+ *              kind 2 (FILE)  the path of an audio file, in UTF-8
+ * Response:  int id, byte status, then
+ *              status 0 (OK)     int nbObservations, short nbModels, then
+ *                                for each model its name (writeUTF) and
+ *                                the similarity as a float
+ *              status 1 (ERROR)  the message (writeUTF)
+ *
+ * Requests of a connection are processed at the same time, each one on its
+ * own (virtual) thread, so responses may come in another order than the
+ * requests: the id tells which request a response is for. A connection has
+ * at most MAX_IN_FLIGHT requests in process, then its reading waits.
+ *
+ * Usage:
+ *   java ML.Classify.ClassifierServer --tcp 7345 --cache /tmp/hjcache \
+ *       --codebook codebook.bin --model normal=normal.hjm --model murmur=murmur.hmmc
+ */
+package ML.Classify;
+
+import ML.Train.HMM;
+import ML.Train.MappedModel;
+import ML.Train.ModelFile;
+import ML.Train.ModelRegistry;
+import ML.Train.ModelSnapshot;
+import ML.Train.SignatureCodebook;
+import ML.Train.SparseModel;
+import ML.featureDetection.FindBeats;
+import ML.featureDetection.NormalizeBeat;
+import ML.featureDetection.PipelineCache;
+import Misc.Tools.Pipeline;
+import Misc.sampled.AudioSamples;
+import Misc.sampled.AudioSamplesCache;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *
+ * Long running classification of recordings against trained HMMs
+ */
+public class ClassifierServer {
+
+    public static final byte PING = 0;
+    public static final byte PCM = 1;
+    public static final byte FILE = 2;
+    public static final byte OK = 0;
+    public static final byte ERROR = 1;
+
+    // larger frames are refused, about 15 minutes of PCM at 44.1 kHz
+    public static final int MAX_FRAME = 1 << 26;
+    public static final int MAX_IN_FLIGHT = 64;
+
+    // same guess as Classify
+    private static final int HEART_RATE = 60;
+
+    private final ModelRegistry models;
+    private final SignatureCodebook codebook;
+    private final PipelineCache cache;
+    private final ExecutorService executor;
+
+    private final AtomicLong served = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * @param cache keeps the stages of the recordings already classified
+     * @param codebook names the Observations, null for the size % 20 suffix
+     */
+    public ClassifierServer(PipelineCache cache, SignatureCodebook codebook) {
+        this(cache, codebook, new ModelRegistry());
+    }
+
+    /**
+     * @param cache
+     * @param codebook
+     * @param registry the models served, they can be published again while
+     * serving
+     */
+    public ClassifierServer(PipelineCache cache, SignatureCodebook codebook, ModelRegistry registry) {
+        this.cache = cache;
+        this.codebook = codebook;
+        models = registry;
+        executor = Pipeline.ioExecutor();
+    }
+
+    /**
+     * Serve a trained HMM, or a new version of it. Requests already in
+     * process keep the version they started with.
+     *
+     * @param name sent back with its similarity
+     * @param train
+     */
+    public void addModel(String name, HMM train) {
+        models.publish(name, train);
+    }
+
+    /**
+     * Same as above for a model file read in place, it is not copied
+     *
+     * @param name
+     * @param train
+     */
+    public void addModel(String name, MappedModel train) {
+        models.publish(name, train);
+    }
+
+    public ModelRegistry getRegistry() {
+        return models;
+    }
+
+    /**
+     * The names of the models served now
+     *
+     * @return
+     */
+    public String[] getModelNames() {
+        return models.models().keySet().toArray(new String[0]);
+    }
+
+    /**
+     * Classify samples against every model, what Classify does without the
+     * GUI and without the statics of EntryPoint
+     *
+     * @param samples
+     * @param samplingRate
+     * @param nbObs receives the number of Observations, may be null
+     * @return the similarity with each model, in the order of getModelNames()
+     */
+    public float[] classify(float[] samples, int samplingRate, int[] nbObs) {
+        return classify(samples, samplingRate, nbObs, models.models());
+    }
+
+    /**
+     * Same as above against the given snapshots
+     */
+    private float[] classify(float[] samples, int samplingRate, int[] nbObs, Map<String, ModelSnapshot> snapshots) {
+        String key = PipelineCache.sampleKey(samples, samplingRate);
+        float[] data_norm = cache.normalized(key, samples, new NormalizeBeat());
+        FindBeats cb = cache.beats(key, data_norm, samplingRate, HEART_RATE);
+        // new Observations at each call, no other request sees them
+        ArrayList obsList = cache.observations(key, cb, samplingRate, HEART_RATE, codebook);
+        if (nbObs != null) {
+            nbObs[0] = obsList.size();
+        }
+        HMM test = new HMM(obsList);
+        test.train();
+        // in sparse rows once for all the models
+        SparseModel rows = SparseModel.of(test);
+
+        float[] similarity = new float[snapshots.size()];
+        int idx = 0;
+        for (ModelSnapshot snap : snapshots.values()) {
+            similarity[idx++] = snap.similarity(rows);
+        }
+        return similarity;
+    }
+
+    /**
+     * Serve standard input and output until standard input is closed. What is
+     * printed on System.out goes to System.err from now on, standard output
+     * only carries responses.
+     *
+     * @throws IOException
+     */
+    public void serveStdio() throws IOException {
+        WritableByteChannel out = Channels.newChannel(new FileOutputStream(FileDescriptor.out));
+        System.setOut(new PrintStream(new FileOutputStream(FileDescriptor.err), true));
+        serve(Channels.newChannel(new FileInputStream(FileDescriptor.in)), out);
+    }
+
+    /**
+     * Accept connections on the loopback address, forever
+     *
+     * @param port
+     * @throws IOException
+     */
+    public void serveTcp(int port) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        accept(server);
+    }
+
+    /**
+     * Accept connections on a Unix domain socket, forever. The socket file is
+     * replaced if it exists.
+     *
+     * @param path
+     * @throws IOException
+     */
+    public void serveUnix(String path) throws IOException {
+        new File(path).delete();
+        ServerSocketChannel server;
+        try {
+            // by reflection, these classes only exist since Java 16
+            Class family = Class.forName("java.net.StandardProtocolFamily");
+            Object unix = Enum.valueOf(family, "UNIX");
+            server = (ServerSocketChannel) ServerSocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null, unix);
+            Object address = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class).invoke(null, path);
+            server.bind((SocketAddress) address);
+        } catch (IOException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new IOException("Unix domain sockets need Java 16 or later", ex);
+        }
+        new File(path).deleteOnExit();
+        accept(server);
+    }
+
+    private void accept(ServerSocketChannel server) throws IOException {
+        try {
+            while (true) {
+                final SocketChannel client = server.accept();
+                executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            serve(client, client);
+                        } catch (IOException ex) {
+                            // usually the client went away
+                            Logger.getLogger(ClassifierServer.class.getName()).log(Level.FINE, null, ex);
+                        } finally {
+                            try {
+                                client.close();
+                            } catch (IOException ex) {
+                                // nothing more to send
+                            }
+                        }
+                    }
+                });
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    /**
+     * Serve one connection until its input is closed, it returns once the
+     * responses of all its requests were written
+     *
+     * @param in
+     * @param out
+     * @throws IOException
+     */
+    public void serve(ReadableByteChannel in, final WritableByteChannel out) throws IOException {
+        final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+        ByteBuffer length = ByteBuffer.allocate(4);
+        try {
+            while (true) {
+                length.clear();
+                if (!readFully(in, length, true)) {
+                    break;
+                }
+                int n = length.getInt(0);
+                if (n < 5 || n > MAX_FRAME) {
+                    throw new IOException("Wrong frame length " + n);
+                }
+                final ByteBuffer frame = ByteBuffer.allocate(n);
+                readFully(in, frame, false);
+                frame.flip();
+                inFlight.acquireUninterruptibly();
+                executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            write(out, handle(frame));
+                        } catch (IOException ex) {
+                            Logger.getLogger(ClassifierServer.class.getName()).log(Level.FINE, null, ex);
+                        } finally {
+                            inFlight.release();
+                        }
+                    }
+                });
+            }
+        } finally {
+            // the requests still in process answer before the connection closes
+            inFlight.acquireUninterruptibly(MAX_IN_FLIGHT);
+        }
+    }
+
+    /**
+     * One request frame, without its length, to the response frame, with its
+     * length
+     */
+    private ByteBuffer handle(ByteBuffer frame) {
+        int id = frame.getInt();
+        byte kind = frame.get();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream res = new DataOutputStream(bytes);
+        try {
+            res.writeInt(0);    // length, set below
+            res.writeInt(id);
+            try {
+                float[] similarity;
+                int[] nbObs = new int[1];
+                // the models of this request, whatever is published meanwhile
+                Map<String, ModelSnapshot> snapshots = models.models();
+                String[] names = snapshots.keySet().toArray(new String[0]);
+                if (kind == PING) {
+                    similarity = new float[0];
+                } else if (kind == PCM) {
+                    int samplingRate = frame.getInt();
+                    float[] samples = new float[frame.remaining() / 2];
+                    frame.order(ByteOrder.LITTLE_ENDIAN);
+                    for (int idx = 0; idx < samples.length; idx++) {
+                        samples[idx] = frame.getShort() / 32768f;
+                    }
+                    similarity = classify(samples, samplingRate, nbObs, snapshots);
+                } else if (kind == FILE) {
+                    String path = new String(frame.array(), frame.position(), frame.remaining(), StandardCharsets.UTF_8);
+                    AudioSamples audio = AudioSamplesCache.shared().get(new File(path), false);
+                    similarity = classify(audio.getSamplesMixedDown(), (int) audio.getSamplingRate(), nbObs, snapshots);
+                } else {
+                    throw new IOException("Unknown request kind " + kind);
+                }
+                res.writeByte(OK);
+                res.writeInt(nbObs[0]);
+                res.writeShort(similarity.length);
+                for (int idx = 0; idx < similarity.length; idx++) {
+                    res.writeUTF(names[idx]);
+                    res.writeFloat(similarity[idx]);
+                }
+                served.incrementAndGet();
+            } catch (Exception ex) {
+                failed.incrementAndGet();
+                bytes.reset();
+                res = new DataOutputStream(bytes);
+                res.writeInt(0);
+                res.writeInt(id);
+                res.writeByte(ERROR);
+                res.writeUTF(String.valueOf(ex.getMessage() != null ? ex.getMessage() : ex));
+            }
+            res.flush();
+        } catch (IOException ex) {
+            // not on a ByteArrayOutputStream
+            throw new IllegalStateException(ex);
+        }
+        ByteBuffer b = ByteBuffer.wrap(bytes.toByteArray());
+        b.putInt(0, b.capacity() - 4);
+        return b;
+    }
+
+    private static void write(WritableByteChannel out, ByteBuffer b) throws IOException {
+        // whole frames, one at a time
+        synchronized (out) {
+            while (b.hasRemaining()) {
+                out.write(b);
+            }
+        }
+    }
+
+    /**
+     * @return false at the end of the input before the first byte, when
+     * endAllowed
+     */
+    private static boolean readFully(ReadableByteChannel in, ByteBuffer b, boolean endAllowed) throws IOException {
+        boolean first = true;
+        while (b.hasRemaining()) {
+            if (in.read(b) < 0) {
+                if (first && endAllowed && b.position() == 0) {
+                    return false;
+                }
+                throw new EOFException("Truncated frame");
+            }
+            first = false;
+        }
+        return true;
+    }
+
+    public long getServed() {
+        return served.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public static void main(String[] args) throws Exception {
+        String mode = "--stdio";
+        String where = null;
+        File cacheDir = null;
+        SignatureCodebook codebook = null;
+        LinkedHashMap<String, File> modelFiles = new LinkedHashMap<String, File>();
+        for (int idx = 0; idx < args.length; idx++) {
+            String a = args[idx];
+            if (a.equals("--stdio")) {
+                mode = a;
+            } else if ((a.equals("--tcp") || a.equals("--unix")) && idx + 1 < args.length) {
+                mode = a;
+                where = args[++idx];
+            } else if (a.equals("--cache") && idx + 1 < args.length) {
+                cacheDir = new File(args[++idx]);
+            } else if (a.equals("--codebook") && idx + 1 < args.length) {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(args[++idx])));
+                try {
+                    codebook = SignatureCodebook.read(in);
+                } finally {
+                    in.close();
+                }
+            } else if (a.equals("--model") && idx + 1 < args.length) {
+                String m = args[++idx];
+                int eq = m.indexOf('=');
+                File f = new File(eq < 0 ? m : m.substring(eq + 1));
+                modelFiles.put(eq < 0 ? f.getName() : m.substring(0, eq), f);
+            } else {
+                System.err.println("Usage: ClassifierServer [--stdio | --tcp port | --unix path]"
+                        + " [--cache dir] [--codebook file] --model [name=]file ...");
+                System.exit(2);
+            }
+        }
+        if (modelFiles.isEmpty()) {
+            System.err.println("No model given");
+            System.exit(2);
+        }
+
+        ClassifierServer server = new ClassifierServer(new PipelineCache(256L << 20, cacheDir), codebook);
+        for (Map.Entry<String, File> e : modelFiles.entrySet()) {
+            if (ModelFile.isModelFile(e.getValue())) {
+                // served from the mapping, no counts are rebuilt
+                server.addModel(e.getKey(), ModelFile.map(e.getValue()));
+            } else {
+                server.addModel(e.getKey(), ModelFile.loadHMM(e.getValue()));
+            }
+        }
+        System.err.println("ClassifierServer: " + modelFiles.size() + " models loaded, " + mode
+                + (where != null ? " " + where : ""));
+        if (mode.equals("--tcp")) {
+            server.serveTcp(Integer.parseInt(where));
+        } else if (mode.equals("--unix")) {
+            server.serveUnix(where);
+        } else {
+            server.serveStdio();
+        }
+    }
+}
@@ -5,8 +5,10 @@ import Misc.Gui.Main.OuterFrame;
 import Misc.AudioFeatures.RecordingInfo;
 import ML.Train.HMM;
 import ML.Train.Segmentation;
+import ML.Train.SignatureCodebook;
 import ML.featureDetection.FindBeats;
 import ML.featureDetection.NormalizeBeat;
+import ML.featureDetection.PipelineCache;
 import Misc.AudioFeatures.FromFileToAudio;
 import Misc.Gui.Controller.Control;
 import java.io.File;
@@ -18,10 +20,16 @@ import javax.swing.JOptionPane;
 public class Classify {
     
     float similarity ;
+    double logLikelihood ;
     public FindBeats cb ;
     public Segmentation segmt  ;
     public FromFileToAudio e = null;
 
+    // results of the processing of recordings already classified
+    private static PipelineCache cache = new PipelineCache(64L << 20, null);
+    // names the Observations as in training, null for "size % 20"
+    private static SignatureCodebook codebook = null;
+
     public Classify(Control controller, OuterFrame outer_frame, RecordingInfo info[]) {
         ArrayList beats = null;
         RecordingInfo recordings[] = info;
@@ -47,21 +55,19 @@ public class Classify {
 
         int heart_rate = 60;
 
+        // the same samples were perhaps already processed, by this or a previous run
+        String key = PipelineCache.sampleKey(samples, smplingRate);
+
         /**
          * Normalize dynamics of signal
          *
          */
         NormalizeBeat norm = new NormalizeBeat();
 
-        float[] data_norm = norm.normalizeAmplitude(samples);
-
-        cb = new FindBeats();
-
-        // calculate beat rate
-        cb.calcBeat(data_norm, smplingRate, heart_rate);
+        float[] data_norm = cache.normalized(key, samples, norm);
 
         // calculate beat rate
-        beats = cb.getProbableBeats();
+        cb = cache.beats(key, data_norm, smplingRate, heart_rate);
 
         /**
          *
@@ -75,28 +81,14 @@ public class Classify {
          * Those times (S1, sys, S2, dia) will be our HMM states, and we must
          * have an observation matrix as input to the training, The result of
          * training should fill in the state transition matrix.
+         *
+         * The Observations are named with a suffix: for the HMM to separate
+         * the observations in more cases than S1-S4, we need to add a "minor"
+         * numbering to the "Sx" string.
          */
+        ArrayList obsList = cache.observations(key, cb, smplingRate, heart_rate, codebook);
         segmt = new Segmentation(cb);
-
-        segmt.segmentation(cb, smplingRate);
-
-        // Add suffix to Observations names
-        // For the HMM to separate the observations in more cases than S1-S4, we need to
-        // add a "minor" numbering to the "Sx" string.
-        // However it is added later than primary name, to have a reasonable amount of Observations
-        // (not having hundreds that are destination, only once)
-        // This because otherwise having only four kind of "Observation" is not very helpful
-        ArrayList obsList = new ArrayList();
-        for (int u = 0; u < segmt.segmentedBeats.size(); u++) {
-            Observation obs = (Observation) segmt.segmentedBeats.get(u);
-            int size = obs.getSign().size();
-            // Lets have no more than 20 Observations
-//            float fact = (float) (size / 20.0) ;
-            int deux = (int) (size % 20);
-            String suffix = String.valueOf(deux);
-            obs.setNameSufx(suffix);
-            obsList.add(obs) ;
-        }
+        segmt.segmentedBeats = obsList;
 
             EntryPoint.hmmTest = new HMM(obsList);
             EntryPoint.hmmTest.train(); 
@@ -106,5 +98,44 @@ public class Classify {
             similarity = vt.viterbi();
             EntryPoint.hmmTest.setSimilarity(similarity) ;
 
+            // one pass of the recording over the trained HMM, no test HMM needed
+            logLikelihood = EntryPoint.hmmTrain.logLikelihood(obsList) ;
+
+    }
+
+    /**
+     * log P(recording | trained HMM), see HMM.logLikelihood()
+     *
+     * @return
+     */
+    public double getLogLikelihood() {
+        return logLikelihood;
+    }
+
+    /**
+     * Use another cache, for instance one that also keeps the results on disk
+     *
+     * @param pc
+     */
+    public static void setCache(PipelineCache pc) {
+        cache = pc;
+    }
+
+    public static PipelineCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Name the Observations with the codebook the trained HMM was made with,
+     * as TrainOne.setCodebook
+     *
+     * @param cb null for "size % 20"
+     */
+    public static void setCodebook(SignatureCodebook cb) {
+        codebook = cb;
+    }
+
+    public static SignatureCodebook getCodebook() {
+        return codebook;
     }
 }
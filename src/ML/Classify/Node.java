@@ -35,4 +35,8 @@ public class Node
     public String tag;
     public float probability;
     public Node parent;
+    // index of tag in the compiled tables of the HMM that made this Node
+    // (see HMM.compile()), valid while indexedBy is those tables
+    public int stateIndex = -1;
+    public Object indexedBy;
 }
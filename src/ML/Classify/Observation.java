@@ -1,6 +1,6 @@
 package ML.Classify;
 
-import java.util.ArrayList;
+import ML.featureDetection.RunLengthSignature;
 
 /**
  * This class is a type for a HMM observation
@@ -10,12 +10,19 @@ import java.util.ArrayList;
  * @author jplr
  */
 public class Observation {
-    ArrayList signature ;    // small FFT of the time between S1 and this sound
+    volatile int[] signature ;   // run lengths of the saturated sound between S1 and this sound
+    final int signLength ;       // number of runs in signature, known even when signature is not computed yet
+    final int signFrom ;         // when signature is lazy, the beat is [signFrom..signTo[ of the normalized recording, else -1
+    final int signTo ;
+    final float signTreshold ;   // saturation treshold of the lazy signature
     float shiftrelToS1 ;         // Shift of this heart sound with respect to S1 as a fraction of the average beat
     float shiftAbsToS1 ;         // Shift of this heart sound with respect to S1 
     PDefFeats feats ;
     String namePrefix ;      //name of the heart sound (S1, S2, etc..)
     String nameSuffix ;      //suffix of the heart sound (4 in S1.4, 8 in S2.8, etc..)
+    String fullName ;        // namePrefix + "." + nameSuffix, made once
+    int stateId = -1 ;       // id of fullName in SymbolTable.states()
+    ObservationKey key ;     // value of this Observation for the HMM, made once
     int rawIndex ;
     private int noiseLevel;
     private final int eventShift;
@@ -28,7 +35,7 @@ public class Observation {
      * @param disp              // displacement of the event from the beginning of the sound file
      * @param soundShiftrel     // Shift of this heart sound with respect to S1 as a fraction of the average beat
      * @param soundShiftabs     // Shift of this heart sound with respect to S1 
-     * @param soundFFT          // A convenient digital signature of the heart beat (not a FFT or Hash)
+     * @param soundFFT          // A convenient digital signature of the heart beat (not a FFT or Hash), run lengths
      * @param noisyFile
      * @param shift
      * @param heartSufx
@@ -36,7 +43,7 @@ public class Observation {
      */
     public Observation(
             String heartPref, String heartSufx, int disp, float soundShiftrel, 
-            float soundShiftabs, ArrayList soundFFT,
+            float soundShiftabs, int[] soundFFT,
             int noisyFile, int shift, int mnev
             ) {
         namePrefix = heartPref;
@@ -45,13 +52,120 @@ public class Observation {
         shiftrelToS1 = soundShiftrel ;
         shiftAbsToS1 = soundShiftabs ;
         signature = soundFFT ;
+        signLength = soundFFT.length ;
+        signFrom = -1 ;
+        signTo = -1 ;
+        signTreshold = 0 ;
         noiseLevel = noisyFile ;
         eventShift = shift ;
         manyEvents = mnev ;
     }
     
-    public ArrayList getSign() {
-        return signature ;
+    /**
+     * Same as above, but only the number of runs of the signature is known.
+     * No sample is kept, the signature is made by getSign(float[]) from the
+     * normalized recording, which the caller still has.
+     * 
+     * @param heartPref
+     * @param heartSufx
+     * @param disp
+     * @param soundShiftrel
+     * @param soundShiftabs
+     * @param from              // the beat in the normalized recording
+     * @param to
+     * @param treshold          // saturation treshold of the signature
+     * @param runs              // number of runs of the signature
+     * @param noisyFile
+     * @param shift
+     * @param mnev
+     */
+    public Observation(
+            String heartPref, String heartSufx, int disp, float soundShiftrel, 
+            float soundShiftabs, int from, int to, float treshold, int runs,
+            int noisyFile, int shift, int mnev
+            ) {
+        namePrefix = heartPref;
+        nameSuffix = heartSufx;
+        rawIndex = disp ; 
+        shiftrelToS1 = soundShiftrel ;
+        shiftAbsToS1 = soundShiftabs ;
+        signature = null ;
+        signLength = runs ;
+        signFrom = from ;
+        signTo = to ;
+        signTreshold = treshold ;
+        noiseLevel = noisyFile ;
+        eventShift = shift ;
+        manyEvents = mnev ;
+    }
+    
+    /**
+     * Same as above when the signature was not kept (ObservationStore without
+     * signatures), only its number of runs is known and getSign() fails
+     */
+    Observation(
+            String heartPref, String heartSufx, int disp, float soundShiftrel, 
+            float soundShiftabs, int runs,
+            int noisyFile, int shift, int mnev
+            ) {
+        namePrefix = heartPref;
+        nameSuffix = heartSufx;
+        rawIndex = disp ; 
+        shiftrelToS1 = soundShiftrel ;
+        shiftAbsToS1 = soundShiftabs ;
+        signature = null ;
+        signLength = runs ;
+        signFrom = -1 ;
+        signTo = -1 ;
+        signTreshold = 0 ;
+        noiseLevel = noisyFile ;
+        eventShift = shift ;
+        manyEvents = mnev ;
+    }
+    
+    /**
+     * The run lengths of the beat signature, the array must not be modified
+     * @return 
+     * @throws IllegalStateException when the signature was not made yet (lazy
+     * constructor, see getSign(float[])) or not kept, see hasSign()
+     */
+    public int[] getSign() {
+        int[] sign = signature ;
+        if (sign == null) {
+            throw new IllegalStateException("The signature of " + getFullName()
+                    + (signFrom < 0 ? " was not kept" : " was not made, see getSign(float[])")) ;
+        }
+        return sign ;
+    }
+    
+    /**
+     * Same as above, a lazy signature is made from the normalized recording
+     * the Observation was segmented from (FindBeats.getNormalizedData()),
+     * then kept
+     * @param normalized
+     * @return 
+     * @throws IllegalStateException when the signature was not kept
+     */
+    public int[] getSign(float[] normalized) {
+        int[] sign = signature ;
+        if (sign == null) {
+            if (signFrom < 0) {
+                throw new IllegalStateException("The signature of " + getFullName() + " was not kept") ;
+            }
+            // the bounds are final, two threads at worst encode the same
+            // runs twice
+            sign = RunLengthSignature.encodeRuns(normalized, signFrom, signTo, signTreshold) ;
+            signature = sign ;
+        }
+        return sign ;
+    }
+    
+    /**
+     * The number of runs of the signature, it does not compute the signature
+     * @return 
+     */
+    public int getSignLength() {
+        return signLength ;
     }
     
     public String getNamePref() {
@@ -59,19 +173,93 @@ public class Observation {
     }
     
     public String getFullName() {
-        return namePrefix + "." + nameSuffix ;
+        if (fullName == null) {
+            fullName = namePrefix + "." + nameSuffix ;
+        }
+        return fullName ;
+    }
+    
+    /**
+     * The full name interned as a small int
+     * @return 
+     */
+    public int getStateId() {
+        if (stateId < 0) {
+            stateId = SymbolTable.states().intern(getFullName()) ;
+        }
+        return stateId ;
+    }
+    
+    /**
+     * The value of this Observation for the HMM, Observations with the same
+     * key are equal. The name must not change once the Observation is used
+     * as a key in a map.
+     * @return 
+     */
+    public ObservationKey getKey() {
+        if (key == null) {
+            key = ObservationKey.of(this) ;
+        }
+        return key ;
+    }
+    
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true ;
+        }
+        if (!(o instanceof Observation)) {
+            return false ;
+        }
+        return getKey().equals(((Observation) o).getKey()) ;
+    }
+    
+    @Override
+    public int hashCode() {
+        return getKey().hashCode() ;
+    }
+    
+    public String getNameSufx() {
+        return nameSuffix ;
     }
     
     public void setNamePref(String s) {
         namePrefix = s;
+        fullName = null ;
+        stateId = -1 ;
+        key = null ;
     }
 
     public void addPreDef(PDefFeats predefFeatures) {
         feats = predefFeatures ;
     }
 
+    public PDefFeats getPreDef() {
+        return feats ;
+    }
+
     public void setNameSufx(String suffix) {
        nameSuffix = suffix;
+       fullName = null ;
+       stateId = -1 ;
+       key = null ;
+    }
+
+    public float getShiftRel() {
+        return shiftrelToS1 ;
+    }
+
+    public float getShiftAbs() {
+        return shiftAbsToS1 ;
+    }
+
+    /**
+     * True when the signature is already computed (see the lazy constructor),
+     * else getSign() fails
+     * @return 
+     */
+    public boolean hasSign() {
+        return signature != null ;
     }
 
     /**
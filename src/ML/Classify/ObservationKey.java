@@ -0,0 +1,76 @@
+package ML.Classify;
+
+/**
+ * The value of an Observation as seen by the HMM: the id of its full name in
+ * SymbolTable.states() and a quantized code of its signature.
+ *
+ * Two Observations with the same key are the same observation for training
+ * and classification, so the count maps of the HMM have one entry per key,
+ * not one per heart sound of the corpus.
+ *
+ */
+public final class ObservationKey {
+
+    private final int symbol;
+    private final int code;
+
+    public ObservationKey(int symbol, int code) {
+        this.symbol = symbol;
+        this.code = code;
+    }
+
+    /**
+     * The key of an Observation, see Observation.getKey()
+     *
+     * @param obs
+     * @return
+     */
+    public static ObservationKey of(Observation obs) {
+        return new ObservationKey(obs.getStateId(), quantize(obs.getSignLength()));
+    }
+
+    /**
+     * Signature lengths are bucketed by their order of magnitude (base 2), so
+     * that beats of similar complexity share a code
+     *
+     * @param runs
+     * @return
+     */
+    public static int quantize(int runs) {
+        return 32 - Integer.numberOfLeadingZeros(runs);
+    }
+
+    public int getSymbol() {
+        return symbol;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    public String getName() {
+        return SymbolTable.states().name(symbol);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ObservationKey)) {
+            return false;
+        }
+        ObservationKey k = (ObservationKey) o;
+        return (symbol == k.symbol) && (code == k.code);
+    }
+
+    @Override
+    public int hashCode() {
+        return (symbol * 31) + code;
+    }
+
+    @Override
+    public String toString() {
+        return getName() + "#" + code;
+    }
+}
@@ -0,0 +1,332 @@
+package ML.Classify;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A compact sequence of Observations, for large training corpora.
+ *
+ * Instead of one object per Observation (two Strings, a signature array, ...)
+ * each field is kept in its own primitive column, full names are interned in
+ * SymbolTable.states(), their prefixes and suffixes in SymbolTable.parts(),
+ * and all signatures are packed one after the other in one int arena, each
+ * Observation knowing its offset and length in it.
+ *
+ * An Observation object is only made when get(i) is called.
+ *
+ */
+public class ObservationStore {
+
+    private static final int NO_SIGN = -1;
+
+    private final SymbolTable symbols;
+    private final SymbolTable parts;
+    private final boolean withSign;
+
+    private int size;
+    private int[] stateId;        // full name "S2.7"
+    private int[] prefixId;       // "S2"
+    private int[] suffixId;       // "7"
+    private int[] rawIndex;
+    private float[] shiftRel;
+    private float[] shiftAbs;
+    private int[] noise;
+    private int[] eventShift;
+    private int[] manyEvents;
+    private int[] featsIdx;
+    private int[] signOffset;
+    private int[] signLength;
+
+    // all signatures one after the other
+    private int[] arena;
+    private int arenaSize;
+
+    // predefined features are shared by all Observations of a recording
+    private final ArrayList<PDefFeats> feats;
+
+    /**
+     * @param withSignatures when false, only the length of each signature is
+     * kept, which is what the suffix of the names needs
+     */
+    public ObservationStore(boolean withSignatures) {
+        this(withSignatures, 256);
+    }
+
+    public ObservationStore(boolean withSignatures, int capacity) {
+        symbols = SymbolTable.states();
+        parts = SymbolTable.parts();
+        withSign = withSignatures;
+        capacity = Math.max(capacity, 1);
+        stateId = new int[capacity];
+        prefixId = new int[capacity];
+        suffixId = new int[capacity];
+        rawIndex = new int[capacity];
+        shiftRel = new float[capacity];
+        shiftAbs = new float[capacity];
+        noise = new int[capacity];
+        eventShift = new int[capacity];
+        manyEvents = new int[capacity];
+        featsIdx = new int[capacity];
+        signOffset = new int[capacity];
+        signLength = new int[capacity];
+        arena = new int[withSign ? capacity * 8 : 0];
+        arenaSize = 0;
+        feats = new ArrayList<PDefFeats>();
+        size = 0;
+    }
+
+    /**
+     * Append all the Observations of a list, as made by Segmentation
+     *
+     * @param observations
+     */
+    public void addAll(ArrayList observations) {
+        for (int idx = 0; idx < observations.size(); idx++) {
+            add((Observation) observations.get(idx));
+        }
+    }
+
+    public void add(Observation obs) {
+        if (obs.getNameSufx() == null) {
+            throw new IllegalArgumentException("Observation " + obs.getNamePref() + " has no suffix");
+        }
+        if (size == stateId.length) {
+            grow();
+        }
+        int idx = size;
+        stateId[idx] = obs.getStateId();
+        prefixId[idx] = parts.intern(obs.getNamePref());
+        suffixId[idx] = parts.intern(obs.getNameSufx());
+        rawIndex[idx] = obs.getRawIndex();
+        shiftRel[idx] = obs.getShiftRel();
+        shiftAbs[idx] = obs.getShiftAbs();
+        noise[idx] = obs.getNoise();
+        eventShift[idx] = obs.getShift();
+        manyEvents[idx] = obs.getManyEvents();
+        featsIdx[idx] = featsIndex(obs.getPreDef());
+        signLength[idx] = obs.getSignLength();
+        if (withSign) {
+            int[] sign = obs.getSign();
+            if (arenaSize + sign.length > arena.length) {
+                arena = Arrays.copyOf(arena, Math.max(arena.length * 2, arenaSize + sign.length));
+            }
+            System.arraycopy(sign, 0, arena, arenaSize, sign.length);
+            signOffset[idx] = arenaSize;
+            arenaSize += sign.length;
+        } else {
+            signOffset[idx] = NO_SIGN;
+        }
+        size++;
+    }
+
+    /**
+     * Append one Observation given by its columns, used when reading stored
+     * features back. sign may be null if signatures are not kept.
+     */
+    public void add(String prefix, String suffix, int disp, float rel, float abs,
+            int noisyFile, int shift, int mnev, PDefFeats pdf,
+            int[] sign, int signOff, int signLen) {
+        if (suffix == null) {
+            throw new IllegalArgumentException("Observation " + prefix + " has no suffix");
+        }
+        if (size == stateId.length) {
+            grow();
+        }
+        int idx = size;
+        stateId[idx] = symbols.intern(prefix + "." + suffix);
+        prefixId[idx] = parts.intern(prefix);
+        suffixId[idx] = parts.intern(suffix);
+        rawIndex[idx] = disp;
+        shiftRel[idx] = rel;
+        shiftAbs[idx] = abs;
+        noise[idx] = noisyFile;
+        eventShift[idx] = shift;
+        manyEvents[idx] = mnev;
+        featsIdx[idx] = featsIndex(pdf);
+        signLength[idx] = signLen;
+        if (withSign && (sign != null)) {
+            if (arenaSize + signLen > arena.length) {
+                arena = Arrays.copyOf(arena, Math.max(arena.length * 2, arenaSize + signLen));
+            }
+            System.arraycopy(sign, signOff, arena, arenaSize, signLen);
+            signOffset[idx] = arenaSize;
+            arenaSize += signLen;
+        } else {
+            signOffset[idx] = NO_SIGN;
+        }
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int stateId(int i) {
+        return stateId[i];
+    }
+
+    /**
+     * The full name, without any concatenation
+     *
+     * @param i
+     * @return
+     */
+    public String stateName(int i) {
+        return symbols.name(stateId[i]);
+    }
+
+    /**
+     * The key of Observation i, as Observation.getKey() would give it
+     *
+     * @param i
+     * @return
+     */
+    public ObservationKey key(int i) {
+        return new ObservationKey(stateId[i], ObservationKey.quantize(signLength[i]));
+    }
+
+    public String prefix(int i) {
+        return parts.name(prefixId[i]);
+    }
+
+    public String suffix(int i) {
+        return parts.name(suffixId[i]);
+    }
+
+    public int rawIndex(int i) {
+        return rawIndex[i];
+    }
+
+    public float shiftRel(int i) {
+        return shiftRel[i];
+    }
+
+    public float shiftAbs(int i) {
+        return shiftAbs[i];
+    }
+
+    public int noise(int i) {
+        return noise[i];
+    }
+
+    public int shift(int i) {
+        return eventShift[i];
+    }
+
+    public int manyEvents(int i) {
+        return manyEvents[i];
+    }
+
+    public PDefFeats preDef(int i) {
+        return featsIdx[i] < 0 ? null : feats.get(featsIdx[i]);
+    }
+
+    public int signLength(int i) {
+        return signLength[i];
+    }
+
+    public boolean hasSign(int i) {
+        return signOffset[i] != NO_SIGN;
+    }
+
+    /**
+     * Copy the signature of Observation i in out
+     *
+     * @param i
+     * @param out must have room for signLength(i) runs
+     * @return the number of runs copied, 0 if signatures are not kept
+     */
+    public int copySign(int i, int[] out) {
+        if (signOffset[i] == NO_SIGN) {
+            return 0;
+        }
+        System.arraycopy(arena, signOffset[i], out, 0, signLength[i]);
+        return signLength[i];
+    }
+
+    /**
+     * The arena itself, signatures are at signOffset(i) for signLength(i) runs
+     *
+     * @return
+     */
+    public int[] signArena() {
+        return arena;
+    }
+
+    public int signOffset(int i) {
+        return signOffset[i];
+    }
+
+    /**
+     * Make an Observation object out of the columns of Observation i, its
+     * getSign() fails when signatures are not kept
+     *
+     * @param i
+     * @return
+     */
+    public Observation get(int i) {
+        Observation obs;
+        if (signOffset[i] == NO_SIGN) {
+            // the length is known even when the signature was not kept
+            obs = new Observation(prefix(i), suffix(i), rawIndex[i],
+                    shiftRel[i], shiftAbs[i], signLength[i], noise[i], eventShift[i], manyEvents[i]);
+        } else {
+            int[] sign = Arrays.copyOfRange(arena, signOffset[i], signOffset[i] + signLength[i]);
+            obs = new Observation(prefix(i), suffix(i), rawIndex[i],
+                    shiftRel[i], shiftAbs[i], sign, noise[i], eventShift[i], manyEvents[i]);
+        }
+        obs.addPreDef(preDef(i));
+        return obs;
+    }
+
+    /**
+     * Approximate memory used by the columns and the arena
+     *
+     * @return
+     */
+    public long byteSize() {
+        // twelve columns of 4 bytes
+        return 48L * stateId.length + 4L * arena.length;
+    }
+
+    /**
+     * Release the unused end of the columns
+     */
+    public void trimToSize() {
+        resize(size);
+        arena = Arrays.copyOf(arena, arenaSize);
+    }
+
+    private int featsIndex(PDefFeats pdf) {
+        if (pdf == null) {
+            return -1;
+        }
+        // few recordings per store, and the last one is the usual hit
+        for (int idx = feats.size() - 1; idx >= 0; idx--) {
+            if (feats.get(idx) == pdf) {
+                return idx;
+            }
+        }
+        feats.add(pdf);
+        return feats.size() - 1;
+    }
+
+    private void grow() {
+        resize(Math.max(stateId.length * 2, 16));
+    }
+
+    private void resize(int capacity) {
+        stateId = Arrays.copyOf(stateId, capacity);
+        prefixId = Arrays.copyOf(prefixId, capacity);
+        suffixId = Arrays.copyOf(suffixId, capacity);
+        rawIndex = Arrays.copyOf(rawIndex, capacity);
+        shiftRel = Arrays.copyOf(shiftRel, capacity);
+        shiftAbs = Arrays.copyOf(shiftAbs, capacity);
+        noise = Arrays.copyOf(noise, capacity);
+        eventShift = Arrays.copyOf(eventShift, capacity);
+        manyEvents = Arrays.copyOf(manyEvents, capacity);
+        featsIdx = Arrays.copyOf(featsIdx, capacity);
+        signOffset = Arrays.copyOf(signOffset, capacity);
+        signLength = Arrays.copyOf(signLength, capacity);
+    }
+}
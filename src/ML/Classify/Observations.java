@@ -5,70 +5,93 @@ import java.util.ArrayList;
 public class Observations
 {
     ArrayList observ;
+    // when not null, the Observations are read from this compact store instead of observ
+    ObservationStore store;
     private int pointer;
-    
+
     public Observations(final ArrayList obs) {
         this.observ = obs;
+        this.store = null;
         this.pointer = 0;
     }
-    
+
+    public Observations(final ObservationStore obs) {
+        this.observ = null;
+        this.store = obs;
+        this.pointer = 0;
+    }
+
     public boolean hasNext() {
-        return this.observ.size() > 0 && this.pointer < this.observ.size();
+        return this.size() > 0 && this.pointer < this.size();
     }
-    
+
     public String currentStateTag() {
-        if (this.observ.size() > 0 && this.pointer < this.observ.size()) {
+        if (this.size() > 0 && this.pointer < this.size()) {
+            if (store != null) {
+                return store.stateName(pointer);
+            }
             final String name = this.currentObservation().getFullName();
             return name;
         }
         return null;
     }
-    
+
     public Observation currentObservation()
     {
-        if(observ.size() > 0 && pointer < observ.size())
+        return get(pointer);
+    }
+
+    /*
+     * The key of the current Observation, read from the columns of a store
+     * without making an Observation
+     */
+    public ObservationKey currentKey()
+    {
+        if(store != null)
         {
-            Observation obs = (Observation)observ.get(pointer);
-            return obs;
+            return store.key(pointer);
         }
-        return null;
+        return currentObservation().getKey();
     }
-    
+
     public void gotoNextObservation() {
-        if (this.observ.size() > 0 && this.pointer - 1 < this.observ.size()) {
+        if (this.size() > 0 && this.pointer - 1 < this.size()) {
             ++this.pointer;
         }
     }
-    
+
     public Observation next()
     {
-        if(observ.size() > 0 && pointer < observ.size())
+        Observation obs = get(pointer);
+        if(obs != null)
         {
-            Observation obs = (Observation)observ.get(pointer);
             pointer++;
-            return obs;
         }
-        return null;
+        return obs;
     }
-    
+
     public void incPtr() {
         ++this.pointer;
     }
-    
+
     int size() {
-        return this.observ.size();
+        return store != null ? store.size() : this.observ.size();
     }
-    
+
     public Observation get(int i)
     {
-        if(observ.size() > 0 && i < observ.size())
+        if(size() > 0 && i < size())
         {
+            if(store != null)
+            {
+                return store.get(i);
+            }
             Observation obs = (Observation)observ.get(i);
             return obs;
         }
         return null;
     }
-    
+
     public void resetPtr() {
         this.pointer = 0;
     }
@@ -0,0 +1,263 @@
+/*
+ * Classify builds a test HMM from the whole recording and compares it once
+ * with the trained HMM (Viterbi.viterbi). For a live auscultation or a
+ * monitoring of hours the score must follow the beats as they come.
+ *
+ * The similarity of Viterbi.viterbi only depends on the transitions of the
+ * test HMM: for each state of the test HMM (a row of transitionsProbs), the
+ * fraction of its next states that are also next states of that state in the
+ * trained HMM, 0 when the trained HMM does not know the state, averaged over
+ * the rows. So each row keeps its number of distinct next states and how many
+ * of them the trained HMM knows, and the sum of the row scores is updated
+ * when a transition appears or disappears in the window:
+ *
+ * - adding an Observation adds the transition from the last one
+ * - expiring the oldest removes the transition to the next one
+ *
+ * Both are O(1), the trained HMM is not walked again and no test HMM is
+ * built.
+ */
+package ML.Classify;
+
+import Misc.Gui.Main.EntryPoint;
+import ML.Train.HMM;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ *
+ * Similarity with the trained HMM over a sliding window of recent beats
+ */
+public class SlidingClassifier {
+
+    // the sum of the row scores is computed again after that many changes,
+    // so that the rounding errors do not add up over hours
+    private static final int RESYNC = 1 << 16;
+
+    private final int maxBeats;
+    private HMM train;
+
+    private final ArrayDeque<Observation> window = new ArrayDeque<Observation>();
+    private int beats = 0;
+
+    // transitions of the window, by state
+    private final HashMap<String, Row> rows = new HashMap<String, Row>();
+    private double sumScores = 0;
+    private int changes = 0;
+
+    /**
+     * Compare with the trained HMM of the application
+     *
+     * @param maxBeats number of beats in the window
+     */
+    public SlidingClassifier(int maxBeats) {
+        this(EntryPoint.hmmTrain, maxBeats);
+    }
+
+    /**
+     * @param train the trained HMM, its counts must not change while it is
+     * used here (see setTrainedModel)
+     * @param maxBeats number of beats in the window
+     */
+    public SlidingClassifier(HMM train, int maxBeats) {
+        if (maxBeats < 1) {
+            throw new IllegalArgumentException("Wrong number of beats " + maxBeats);
+        }
+        this.train = train;
+        this.maxBeats = maxBeats;
+    }
+
+    /**
+     * Add the next Observation of the recording, the oldest beat is expired
+     * when the window holds too many beats
+     *
+     * @param o
+     * @return the similarity of the window
+     */
+    public float add(Observation o) {
+        Observation last = window.peekLast();
+        window.addLast(o);
+        if (isS1(o)) {
+            beats++;
+        }
+        if (last != null) {
+            addTransition(last.getFullName(), o.getFullName(), 1);
+        }
+        // whole beats go, a beat starts with its S1
+        while (beats > maxBeats) {
+            expire();
+            while (!window.isEmpty() && !isS1(window.peekFirst())) {
+                expire();
+            }
+        }
+        return getSimilarity();
+    }
+
+    /**
+     * The similarity after each Observation of a long recording
+     *
+     * @param obsList ArrayList of Observations, as Segmentation gives them
+     * @return
+     */
+    public float[] scoreAll(ArrayList obsList) {
+        float[] scores = new float[obsList.size()];
+        for (int idx = 0; idx < scores.length; idx++) {
+            scores[idx] = add((Observation) obsList.get(idx));
+        }
+        return scores;
+    }
+
+    /**
+     * Same value as Viterbi.viterbi() with a test HMM trained on the
+     * Observations of the window, 0 for an empty window
+     *
+     * @return
+     */
+    public float getSimilarity() {
+        if (rows.isEmpty()) {
+            return 0;
+        }
+        return (float) (sumScores / rows.size());
+    }
+
+    /**
+     * Compare with another trained HMM from now on, for instance the one
+     * published by IncrementalTrainer. It walks the rows of the window once.
+     *
+     * @param hmm
+     */
+    public void setTrainedModel(HMM hmm) {
+        train = hmm;
+        Iterator<java.util.Map.Entry<String, Row>> it = rows.entrySet().iterator();
+        while (it.hasNext()) {
+            java.util.Map.Entry<String, Row> e = it.next();
+            Row row = e.getValue();
+            HashMap trainRow = (HashMap) train.transitionsProbs.get(e.getKey());
+            row.inTrain = trainRow != null;
+            row.matched = 0;
+            if (trainRow != null) {
+                Iterator<String> next = row.counts.keySet().iterator();
+                while (next.hasNext()) {
+                    if (trainRow.containsKey(next.next())) {
+                        row.matched++;
+                    }
+                }
+            }
+        }
+        resync();
+    }
+
+    /**
+     * Empty the window, for instance when the stethoscope was moved
+     */
+    public void reset() {
+        window.clear();
+        rows.clear();
+        beats = 0;
+        sumScores = 0;
+        changes = 0;
+    }
+
+    /**
+     * Number of Observations in the window
+     *
+     * @return
+     */
+    public int size() {
+        return window.size();
+    }
+
+    /**
+     * Number of beats in the window
+     *
+     * @return
+     */
+    public int getBeats() {
+        return beats;
+    }
+
+    public int getMaxBeats() {
+        return maxBeats;
+    }
+
+    private void expire() {
+        Observation first = window.pollFirst();
+        if (isS1(first)) {
+            beats--;
+        }
+        Observation next = window.peekFirst();
+        if (next != null) {
+            addTransition(first.getFullName(), next.getFullName(), -1);
+        }
+    }
+
+    private static boolean isS1(Observation o) {
+        return "S1".equals(o.getNamePref());
+    }
+
+    /**
+     * Count n times the transition state1 => state2 and update the score of
+     * the row of state1 when a next state appears or disappears
+     */
+    private void addTransition(String state1, String state2, int n) {
+        Row row = rows.get(state1);
+        if (row == null) {
+            row = new Row(train.transitionsProbs.get(state1) != null);
+            rows.put(state1, row);
+        }
+        double before = row.score();
+        int[] cnt = row.counts.get(state2);
+        if (cnt == null) {
+            cnt = new int[1];
+            row.counts.put(state2, cnt);
+            if (row.inTrain && ((HashMap) train.transitionsProbs.get(state1)).containsKey(state2)) {
+                row.matched++;
+            }
+        }
+        cnt[0] += n;
+        if (cnt[0] <= 0) {
+            row.counts.remove(state2);
+            if (row.inTrain && ((HashMap) train.transitionsProbs.get(state1)).containsKey(state2)) {
+                row.matched--;
+            }
+        }
+        sumScores += row.score() - before;
+        if (row.counts.isEmpty()) {
+            rows.remove(state1);
+        }
+        if (++changes >= RESYNC) {
+            resync();
+        }
+    }
+
+    private void resync() {
+        double sum = 0;
+        Iterator<Row> it = rows.values().iterator();
+        while (it.hasNext()) {
+            sum += it.next().score();
+        }
+        sumScores = sum;
+        changes = 0;
+    }
+
+    /**
+     * The next states of one state in the window
+     */
+    private static class Row {
+
+        final HashMap<String, int[]> counts = new HashMap<String, int[]>();
+        boolean inTrain;
+        // distinct next states that are also next states in the trained HMM
+        int matched = 0;
+
+        Row(boolean inTrain) {
+            this.inTrain = inTrain;
+        }
+
+        double score() {
+            return inTrain && !counts.isEmpty() ? (double) matched / counts.size() : 0;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package ML.Classify;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns labels (like the state name "S2.7") to small ints, so that they
+ * can be stored and compared as ints.
+ *
+ * Ids are given in order of arrival, starting at 0, and are never removed.
+ * Looking up an existing label does not lock.
+ *
+ */
+public class SymbolTable {
+
+    // the table shared by all Observations for their full names
+    private static final SymbolTable STATES = new SymbolTable();
+    // the prefixes and suffixes of those names, kept apart so that they do
+    // not take ids in the table of states
+    private static final SymbolTable PARTS = new SymbolTable();
+
+    private final ConcurrentHashMap<String, Integer> ids;
+    private volatile String[] names;
+    private int size;
+
+    public SymbolTable() {
+        ids = new ConcurrentHashMap<String, Integer>();
+        names = new String[16];
+        size = 0;
+    }
+
+    public static SymbolTable states() {
+        return STATES;
+    }
+
+    public static SymbolTable parts() {
+        return PARTS;
+    }
+
+    /**
+     * The id of this label, a new id is given if the label is unknown
+     *
+     * @param label
+     * @return
+     */
+    public int intern(String label) {
+        Integer id = ids.get(label);
+        if (id != null) {
+            return id.intValue();
+        }
+        synchronized (this) {
+            id = ids.get(label);
+            if (id != null) {
+                return id.intValue();
+            }
+            String[] n = names;
+            if (size == n.length) {
+                n = Arrays.copyOf(n, size * 2);
+            }
+            n[size] = label;
+            // publish the name before the id
+            names = n;
+            ids.put(label, Integer.valueOf(size));
+            return size++;
+        }
+    }
+
+    /**
+     * The id of this label, or -1 if it was never interned
+     *
+     * @param label
+     * @return
+     */
+    public int lookup(String label) {
+        Integer id = ids.get(label);
+        return id == null ? -1 : id.intValue();
+    }
+
+    public String name(int id) {
+        return names[id];
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+}
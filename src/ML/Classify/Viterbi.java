@@ -1,5 +1,6 @@
 package ML.Classify;
 
+import ML.Train.HMM;
 import Misc.Gui.Main.EntryPoint;
 import java.util.Collection;
 import java.util.Set;
@@ -28,17 +29,29 @@ public class Viterbi {
      * @param hmmTrain
      */
     float viterbi() {
+        return viterbi(EntryPoint.hmmTest, EntryPoint.hmmTrain);
+    }
+
+    /**
+     * Same as above with the given HMMs instead of the ones of the
+     * application, so that several classifications can run at the same time
+     *
+     * @param hmmTest
+     * @param hmmTrain
+     * @return
+     */
+    public float viterbi(HMM hmmTest, HMM hmmTrain) {
         float globalScore = 0, similarity = 0;
 
         // get the keys and values of the training HMM
-        Collection valuesTrain = EntryPoint.hmmTrain.transitionsProbs.values();
-        Set keysTrain = EntryPoint.hmmTrain.transitionsProbs.keySet();
+        Collection valuesTrain = hmmTrain.transitionsProbs.values();
+        Set keysTrain = hmmTrain.transitionsProbs.keySet();
         Object[] valuesTrainArray = valuesTrain.toArray();
         Object[] valuesTrainKeys = keysTrain.toArray();
 
         // get the keys and values of the test HMM
-        Collection valuesTest = EntryPoint.hmmTest.transitionsProbs.values();
-        Set keysTest = EntryPoint.hmmTest.transitionsProbs.keySet();
+        Collection valuesTest = hmmTest.transitionsProbs.values();
+        Set keysTest = hmmTest.transitionsProbs.keySet();
         Object[] valuesTestArray = valuesTest.toArray();
         Object[] valuesTestKeys = keysTest.toArray();
 
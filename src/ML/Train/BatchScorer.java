@@ -0,0 +1,351 @@
+/*
+ * Scoring the recordings of a day one after the other walks the whole model
+ * (N * N transitions) for every Observation of every recording, with a
+ * vector of N scores that is too short to keep the CPU busy.
+ *
+ * Here B recordings are scored together against the same model. The scores
+ * of the batch are kept as a structure of arrays, one array of B lanes per
+ * state:
+ *
+ *   score[j][k] = score of state j for the k-th recording of the batch
+ *
+ * so the innermost loop of the transitions, for one pair (i, j), runs over
+ * the B recordings on contiguous doubles with the same a[i * N + j]:
+ *
+ *   cur[j][k] += prev[i][k] * a[i * N + j]              (forward)
+ *   cur[j][k] = max(cur[j][k], prev[i][k] + logA)       (Viterbi)
+ *
+ * Those loops have no dependency between lanes and read and write at the
+ * same index k, so HotSpot's superword pass compiles them to SIMD
+ * instructions (SSE/AVX) without having to prove that the rows do not
+ * overlap (it does not with offsets in one flat array). Each
+ * transition probability is read once per batch instead of once per
+ * recording. The recordings are sorted by length so that the recordings of a
+ * batch end at about the same step. The batches are scored in parallel on a
+ * fork/join pool, like the E-step of BaumWelch.
+ *
+ * The forward pass is scaled as in ForwardBackward and gives the same log
+ * likelihoods.
+ */
+package ML.Train;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ *
+ * Forward and Viterbi scores of many recordings against one DenseHMM, in
+ * batches
+ */
+public class BatchScorer {
+
+    // 32 doubles, 8 AVX2 vectors or 4 AVX-512 ones, shorter loops spend
+    // too much in their entry and exit
+    public static final int DEFAULT_LANES = 32;
+
+    private final DenseHMM model;
+    private final int n;
+    private final int lanes;
+    private final ForkJoinPool pool;
+
+    // emissions by symbol, b transposed: emis[o * N + j], the last symbol
+    // (index M) is the one outside the alphabet, see DenseHMM.emission
+    private final double[] emis;
+    private final double[] logEmis;
+    private final double[] logA;
+    private final double[] logPi;
+
+    public BatchScorer(DenseHMM model) {
+        this(model, DEFAULT_LANES, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param model
+     * @param lanes recordings scored together
+     * @param pool
+     */
+    public BatchScorer(DenseHMM model, int lanes, ForkJoinPool pool) {
+        if (lanes < 1) {
+            throw new IllegalArgumentException("Wrong number of lanes " + lanes);
+        }
+        this.model = model;
+        this.lanes = lanes;
+        this.pool = pool;
+        n = model.n;
+        int m = model.m;
+        emis = new double[(m + 1) * n];
+        logEmis = new double[(m + 1) * n];
+        for (int o = 0; o <= m; o++) {
+            for (int j = 0; j < n; j++) {
+                double e = model.emission(j, o == m ? -1 : o);
+                emis[o * n + j] = e;
+                logEmis[o * n + j] = Math.log(e);
+            }
+        }
+        logA = new double[n * n];
+        for (int idx = 0; idx < logA.length; idx++) {
+            logA[idx] = Math.log(model.a[idx]);
+        }
+        logPi = new double[n];
+        for (int j = 0; j < n; j++) {
+            logPi[j] = Math.log(model.pi[j]);
+        }
+    }
+
+    /**
+     * log P(recording | model) of each recording, see DenseHMM.logLikelihood
+     *
+     * @param recordings one ArrayList of Observations per recording
+     * @return in the order of recordings
+     */
+    public double[] logLikelihoods(List<ArrayList> recordings) {
+        return logLikelihoodsOf(encode(recordings));
+    }
+
+    /**
+     * Same as above for sequences of symbols (DenseHMM.encode)
+     *
+     * @param sequences
+     * @return
+     */
+    public double[] logLikelihoodsOf(List<int[]> sequences) {
+        return score(sequences, false);
+    }
+
+    /**
+     * The log probability of the most likely path of each recording, the
+     * score of a Viterbi decoding (the paths themselves are not kept, see
+     * BeamViterbi for them)
+     *
+     * @param recordings one ArrayList of Observations per recording
+     * @return in the order of recordings
+     */
+    public double[] viterbiLogProbs(List<ArrayList> recordings) {
+        return viterbiLogProbsOf(encode(recordings));
+    }
+
+    /**
+     * Same as above for sequences of symbols (DenseHMM.encode)
+     *
+     * @param sequences
+     * @return
+     */
+    public double[] viterbiLogProbsOf(List<int[]> sequences) {
+        return score(sequences, true);
+    }
+
+    public int getLanes() {
+        return lanes;
+    }
+
+    private List<int[]> encode(List<ArrayList> recordings) {
+        ArrayList<int[]> seqs = new ArrayList<int[]>(recordings.size());
+        for (int r = 0; r < recordings.size(); r++) {
+            seqs.add(model.encode(recordings.get(r)));
+        }
+        return seqs;
+    }
+
+    private double[] score(final List<int[]> sequences, boolean viterbi) {
+        int count = sequences.size();
+        double[] result = new double[count];
+        if (count == 0) {
+            return result;
+        }
+        // longest first, a batch holds recordings of about the same length
+        Integer[] order = new Integer[count];
+        for (int idx = 0; idx < count; idx++) {
+            order[idx] = Integer.valueOf(idx);
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer x, Integer y) {
+                return sequences.get(y.intValue()).length - sequences.get(x.intValue()).length;
+            }
+        });
+        int[] sorted = new int[count];
+        for (int idx = 0; idx < count; idx++) {
+            sorted[idx] = order[idx].intValue();
+        }
+        int batches = (count + lanes - 1) / lanes;
+        pool.invoke(new Batches(sequences, sorted, result, viterbi, 0, batches));
+        return result;
+    }
+
+    /**
+     * Score the batches from..to-1, splitting them in two while there are
+     * several
+     */
+    private class Batches extends RecursiveAction {
+
+        private final List<int[]> sequences;
+        private final int[] sorted;
+        private final double[] result;
+        private final boolean viterbi;
+        private final int from, to;
+
+        Batches(List<int[]> sequences, int[] sorted, double[] result, boolean viterbi, int from, int to) {
+            this.sequences = sequences;
+            this.sorted = sorted;
+            this.result = result;
+            this.viterbi = viterbi;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Batches(sequences, sorted, result, viterbi, from, mid),
+                        new Batches(sequences, sorted, result, viterbi, mid, to));
+                return;
+            }
+            int first = from * lanes;
+            int w = Math.min(lanes, sorted.length - first);
+            int[][] seqs = new int[w][];
+            for (int k = 0; k < w; k++) {
+                seqs[k] = sequences.get(sorted[first + k]);
+            }
+            double[] scores = viterbi ? viterbiBatch(seqs) : forwardBatch(seqs);
+            for (int k = 0; k < w; k++) {
+                result[sorted[first + k]] = scores[k];
+            }
+        }
+    }
+
+    /**
+     * Scaled forward pass of w recordings together
+     */
+    private double[] forwardBatch(int[][] seqs) {
+        int w = seqs.length;
+        int len = maxLength(seqs);
+        double[][] prev = new double[n][w];
+        double[][] cur = new double[n][w];
+        double[] sum = new double[w];
+        double[] logLik = new double[w];
+        int[] emisRow = new int[w];
+        for (int t = 0; t < len; t++) {
+            emissionRows(seqs, t, emisRow);
+            for (int j = 0; j < n; j++) {
+                Arrays.fill(cur[j], t == 0 ? model.pi[j] : 0);
+            }
+            if (t > 0) {
+                for (int i = 0; i < n; i++) {
+                    double[] p = prev[i];
+                    for (int j = 0; j < n; j++) {
+                        double aij = model.a[i * n + j];
+                        double[] c = cur[j];
+                        // across the batch, vectorized
+                        for (int k = 0; k < w; k++) {
+                            c[k] += p[k] * aij;
+                        }
+                    }
+                }
+            }
+            Arrays.fill(sum, 0);
+            for (int j = 0; j < n; j++) {
+                double[] c = cur[j];
+                for (int k = 0; k < w; k++) {
+                    double v = c[k] * emis[emisRow[k] + j];
+                    c[k] = v;
+                    sum[k] += v;
+                }
+            }
+            for (int k = 0; k < w; k++) {
+                if (t < seqs[k].length) {
+                    logLik[k] += sum[k] > 0 ? Math.log(sum[k]) : Double.NEGATIVE_INFINITY;
+                }
+                // an impossible recording stays at 0 without NaN
+                if (sum[k] <= 0) {
+                    sum[k] = 1;
+                }
+            }
+            for (int j = 0; j < n; j++) {
+                double[] c = cur[j];
+                for (int k = 0; k < w; k++) {
+                    c[k] /= sum[k];
+                }
+            }
+            double[][] tmp = prev;
+            prev = cur;
+            cur = tmp;
+        }
+        return logLik;
+    }
+
+    /**
+     * Viterbi scores of w recordings together, in log probabilities
+     */
+    private double[] viterbiBatch(int[][] seqs) {
+        int w = seqs.length;
+        int len = maxLength(seqs);
+        double[][] prev = new double[n][w];
+        double[][] cur = new double[n][w];
+        double[] best = new double[w];
+        int[] emisRow = new int[w];
+        for (int t = 0; t < len; t++) {
+            emissionRows(seqs, t, emisRow);
+            for (int j = 0; j < n; j++) {
+                Arrays.fill(cur[j], t == 0 ? logPi[j] : Double.NEGATIVE_INFINITY);
+            }
+            if (t > 0) {
+                for (int i = 0; i < n; i++) {
+                    double[] p = prev[i];
+                    for (int j = 0; j < n; j++) {
+                        double la = logA[i * n + j];
+                        double[] c = cur[j];
+                        // across the batch, vectorized (a compare and a
+                        // blend, cheaper than Math.max and its NaN checks)
+                        for (int k = 0; k < w; k++) {
+                            double v = p[k] + la;
+                            c[k] = v > c[k] ? v : c[k];
+                        }
+                    }
+                }
+            }
+            for (int j = 0; j < n; j++) {
+                double[] c = cur[j];
+                for (int k = 0; k < w; k++) {
+                    c[k] += logEmis[emisRow[k] + j];
+                }
+            }
+            // the last step of each recording gives its score
+            for (int k = 0; k < w; k++) {
+                if (t == seqs[k].length - 1) {
+                    double b = Double.NEGATIVE_INFINITY;
+                    for (int j = 0; j < n; j++) {
+                        b = Math.max(b, cur[j][k]);
+                    }
+                    best[k] = b;
+                }
+            }
+            double[][] tmp = prev;
+            prev = cur;
+            cur = tmp;
+        }
+        return best;
+    }
+
+    /**
+     * Offset in emis of the symbol of each recording at step t, the unknown
+     * symbol for the recordings that are over
+     */
+    private void emissionRows(int[][] seqs, int t, int[] emisRow) {
+        for (int k = 0; k < seqs.length; k++) {
+            int o = t < seqs[k].length ? seqs[k][t] : -1;
+            emisRow[k] = (o < 0 ? model.m : o) * n;
+        }
+    }
+
+    private static int maxLength(int[][] seqs) {
+        int len = 0;
+        for (int k = 0; k < seqs.length; k++) {
+            len = Math.max(len, seqs[k].length);
+        }
+        return len;
+    }
+}
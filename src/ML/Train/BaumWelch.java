@@ -0,0 +1,227 @@
+/*
+ * The Baum-Welch algorithm, see README.txt
+ *
+ * It is an Expectation-Maximization over unlabelled recordings: the E-step
+ * runs Forward-Backward on each recording to get the expected number of
+ * times each state starts a recording, each transition is used and each
+ * symbol is emitted by each state, the M-step turns these expected counts
+ * into new probabilities. The likelihood of the corpus can only grow, the
+ * loop stops when it grows by less than a relative tolerance.
+ *
+ * Recordings are independent in the E-step, so they are processed in
+ * parallel on a fork/join pool, each task summing the statistics of its own
+ * recordings, the task results being added when joined.
+ */
+package ML.Train;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ *
+ * Refines a DenseHMM, usually seeded with DenseHMM.fromCounts() from the
+ * supervised model, over recordings that have no labels.
+ */
+public class BaumWelch {
+
+    // recordings per fork/join task
+    private static final int SHARD = 8;
+
+    // added to every expected count, so that no probability falls to 0
+    private static final double PSEUDO_COUNT = 1e-3;
+
+    private final ForkJoinPool pool;
+    private final ArrayList<Double> history;
+
+    public BaumWelch() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public BaumWelch(ForkJoinPool pool) {
+        this.pool = pool;
+        history = new ArrayList<Double>();
+    }
+
+    /**
+     * Train from seed on recordings given as lists of Observations
+     *
+     * @param seed
+     * @param recordings one ArrayList of Observations per recording
+     * @param maxIter
+     * @param tolerance relative growth of the likelihood under which it stops
+     * @return
+     */
+    public DenseHMM trainObservations(DenseHMM seed, List<ArrayList> recordings, int maxIter, double tolerance) {
+        ArrayList<int[]> seqs = new ArrayList<int[]>();
+        for (ArrayList rec : recordings) {
+            seqs.add(seed.encode(rec));
+        }
+        return train(seed, seqs, maxIter, tolerance);
+    }
+
+    /**
+     * Train from seed on recordings given as symbol sequences
+     *
+     * @param seed
+     * @param sequences
+     * @param maxIter
+     * @param tolerance
+     * @return the refined model, seed is not modified
+     */
+    public DenseHMM train(DenseHMM seed, List<int[]> sequences, int maxIter, double tolerance) {
+        DenseHMM model = seed;
+        history.clear();
+        double lastLik = Double.NEGATIVE_INFINITY;
+        for (int iter = 0; iter < maxIter; iter++) {
+            Stats st = pool.invoke(new EStep(model, sequences, 0, sequences.size()));
+            history.add(Double.valueOf(st.logLik));
+            if ((iter > 0) && (st.logLik - lastLik <= tolerance * Math.abs(lastLik))) {
+                // converged, the last M-step did not improve enough
+                break;
+            }
+            lastLik = st.logLik;
+            model = mStep(model, st);
+        }
+        return model;
+    }
+
+    /**
+     * The log likelihood of the corpus at each iteration
+     *
+     * @return
+     */
+    public List<Double> getHistory() {
+        return history;
+    }
+
+    private DenseHMM mStep(DenseHMM model, Stats st) {
+        int n = model.n;
+        int m = model.m;
+        double[] pi = new double[n];
+        double[] a = new double[n * n];
+        double[] b = new double[n * m];
+        for (int i = 0; i < n; i++) {
+            pi[i] = st.pi[i] + PSEUDO_COUNT;
+            for (int j = 0; j < n; j++) {
+                a[i * n + j] = st.a[i * n + j] + PSEUDO_COUNT;
+            }
+            DenseHMM.normalize(a, i * n, n);
+            for (int k = 0; k < m; k++) {
+                b[i * m + k] = st.b[i * m + k] + PSEUDO_COUNT;
+            }
+            DenseHMM.normalize(b, i * m, m);
+        }
+        DenseHMM.normalize(pi, 0, n);
+        return new DenseHMM(model.states, model.symbols, pi, a, b, model.unseen);
+    }
+
+    /**
+     * Expected counts (sufficient statistics) over some recordings
+     */
+    private static class Stats {
+
+        final double[] pi;
+        final double[] a;
+        final double[] b;
+        double logLik;
+
+        Stats(int n, int m) {
+            pi = new double[n];
+            a = new double[n * n];
+            b = new double[n * m];
+            logLik = 0;
+        }
+
+        Stats merge(Stats o) {
+            add(pi, o.pi);
+            add(a, o.a);
+            add(b, o.b);
+            logLik += o.logLik;
+            return this;
+        }
+
+        private static void add(double[] x, double[] y) {
+            for (int idx = 0; idx < x.length; idx++) {
+                x[idx] += y[idx];
+            }
+        }
+    }
+
+    private static class EStep extends RecursiveTask<Stats> {
+
+        private final DenseHMM hmm;
+        private final List<int[]> seqs;
+        private final int from, to;
+
+        EStep(DenseHMM hmm, List<int[]> seqs, int from, int to) {
+            this.hmm = hmm;
+            this.seqs = seqs;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Stats compute() {
+            if (to - from > SHARD) {
+                int mid = (from + to) >>> 1;
+                EStep left = new EStep(hmm, seqs, from, mid);
+                left.fork();
+                Stats right = new EStep(hmm, seqs, mid, to).compute();
+                return left.join().merge(right);
+            }
+            Stats st = new Stats(hmm.n, hmm.m);
+            // work arrays reused for the recordings of this task
+            double[] alpha = new double[0];
+            double[] beta = new double[0];
+            double[] scale = new double[0];
+            for (int s = from; s < to; s++) {
+                int[] obs = seqs.get(s);
+                if (obs.length == 0) {
+                    continue;
+                }
+                if (alpha.length < obs.length * hmm.n) {
+                    alpha = new double[obs.length * hmm.n];
+                    beta = new double[obs.length * hmm.n];
+                    scale = new double[obs.length];
+                }
+                double lik = ForwardBackward.forward(hmm, obs, alpha, scale);
+                if (Double.isInfinite(lik)) {
+                    // this recording is impossible for the model, skip it
+                    continue;
+                }
+                ForwardBackward.backward(hmm, obs, scale, beta);
+                st.logLik += lik;
+                accumulate(st, obs, alpha, beta, scale);
+            }
+            return st;
+        }
+
+        private void accumulate(Stats st, int[] obs, double[] alpha, double[] beta, double[] scale) {
+            int n = hmm.n;
+            int m = hmm.m;
+            for (int t = 0; t < obs.length; t++) {
+                int row = t * n;
+                for (int i = 0; i < n; i++) {
+                    // gamma, the probability to be in state i at t
+                    double gamma = alpha[row + i] * beta[row + i] / scale[t];
+                    if (t == 0) {
+                        st.pi[i] += gamma;
+                    }
+                    if (obs[t] >= 0) {
+                        st.b[i * m + obs[t]] += gamma;
+                    }
+                    if (t + 1 < obs.length) {
+                        int next = row + n;
+                        // xi, the probability of the transition i -> j between t and t+1
+                        for (int j = 0; j < n; j++) {
+                            st.a[i * n + j] += alpha[row + i] * hmm.a[i * n + j]
+                                    * hmm.emission(j, obs[t + 1]) * beta[next + j];
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ * Viterbi decoding, the most likely sequence of hidden states for a sequence
+ * of Observations (the first problem of README.txt), in log probabilities.
+ *
+ * With the suffixes of the Observations names (S1.0 ... S4.19, and the S5+
+ * events) a model has about a hundred states, and a full decoding costs
+ * T * N * N. Two things make it cheaper:
+ *
+ * - sparse transitions: a transition that was never counted has the default
+ *   (smoothed) probability of its row. So the best score reaching state j is
+ *   either the best of "score(i) + default(i)" over all the states i, the
+ *   same for every j and found once per step, or comes from a counted
+ *   transition i => j. Only the counted successors of each state are
+ *   visited, a step costs N + (counted transitions of the kept states)
+ *   instead of N * N. This part is exact.
+ *
+ * - pruning: after each step only the states whose score is within
+ *   "logBeam" of the best one are kept, and at most "beamWidth" of them.
+ *   The states dropped are not expanded at the next step. This part may
+ *   miss the best path, the statistics tell how much was pruned.
+ */
+package ML.Train;
+
+import ML.Classify.Observation;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ *
+ * Beam pruned Viterbi decoding over the sparse rows of a model
+ */
+public class BeamViterbi {
+
+    private final SparseRows model;
+    private final int n;
+    private final float[] logPi;
+    private int beamWidth;
+    private float logBeam;
+
+    // statistics of the last decoding
+    private long stateSteps = 0;
+    private long keptSteps = 0;
+    private long transitions = 0;
+
+    /**
+     * Exact decoding, no pruning
+     *
+     * @param model a MappedModel or a SparseModel
+     */
+    public BeamViterbi(SparseRows model) {
+        this(model, 0, Float.POSITIVE_INFINITY);
+    }
+
+    /**
+     * @param model
+     * @param beamWidth states kept at each step, 0 for no limit
+     * @param logBeam states more than that below the best one are dropped,
+     * Float.POSITIVE_INFINITY for no limit
+     */
+    public BeamViterbi(SparseRows model, int beamWidth, float logBeam) {
+        this.model = model;
+        n = model.getNbStates();
+        // start in a state with its frequency, as DenseHMM.fromCounts
+        logPi = new float[n];
+        double total = 0;
+        for (int i = 0; i < n; i++) {
+            total += model.stateCount(i);
+        }
+        for (int i = 0; i < n; i++) {
+            logPi[i] = total > 0 ? (float) Math.log(model.stateCount(i) / total) : (float) -Math.log(n);
+        }
+        setBeam(beamWidth, logBeam);
+    }
+
+    /**
+     * Change the pruning, between two decodings
+     *
+     * @param beamWidth
+     * @param logBeam
+     */
+    public void setBeam(int beamWidth, float logBeam) {
+        this.beamWidth = beamWidth <= 0 || beamWidth > n ? n : beamWidth;
+        this.logBeam = logBeam;
+    }
+
+    /**
+     * The most likely states of a sequence of Observations
+     *
+     * @param observations
+     * @return the indices of the states in the model, see SparseRows.stateName()
+     */
+    public int[] decode(ArrayList observations) {
+        int[] seq = new int[observations.size()];
+        for (int idx = 0; idx < seq.length; idx++) {
+            seq[idx] = model.symbolIndex(((Observation) observations.get(idx)).getKey());
+        }
+        return decode(seq, null);
+    }
+
+    /**
+     * Same as above for the names of the states
+     *
+     * @param observations
+     * @return
+     */
+    public String[] decodeNames(ArrayList observations) {
+        int[] path = decode(observations);
+        String[] names = new String[path.length];
+        for (int t = 0; t < path.length; t++) {
+            names[t] = model.stateName(path[t]);
+        }
+        return names;
+    }
+
+    /**
+     * @param seq symbols of the model, -1 for a symbol never seen in training
+     * (it then has the add-one default of each state, emissionDefaultLogProb)
+     * @param logProb receives the log probability of the path, may be null
+     * @return the indices of the states, empty for an empty sequence
+     */
+    public int[] decode(int[] seq, double[] logProb) {
+        stateSteps = 0;
+        keptSteps = 0;
+        transitions = 0;
+        int len = seq.length;
+        if (len == 0 || n == 0) {
+            return new int[0];
+        }
+        // for each step the kept states and where they came from
+        int[][] keptStates = new int[len][];
+        int[][] keptFrom = new int[len][];
+
+        // scores add up over the whole recording, doubles keep them exact enough
+        double[] score = new double[n];
+        int[] from = new int[n];
+        for (int j = 0; j < n; j++) {
+            score[j] = logPi[j] + emission(j, seq[0]);
+            from[j] = -1;
+        }
+        int[] active = new int[n];
+        double[] activeScore = new double[n];
+        int nbActive = prune(score, active, activeScore);
+        keep(keptStates, keptFrom, 0, active, nbActive, from);
+        stateSteps += n;
+        keptSteps += nbActive;
+
+        for (int t = 1; t < len; t++) {
+            // the best way to reach any state through an uncounted transition
+            double bestDefault = Double.NEGATIVE_INFINITY;
+            int bestDefaultFrom = -1;
+            for (int k = 0; k < nbActive; k++) {
+                int i = active[k];
+                double v = activeScore[k] + model.transitionDefaultLogProb(i);
+                if (v > bestDefault) {
+                    bestDefault = v;
+                    bestDefaultFrom = i;
+                }
+            }
+            Arrays.fill(score, bestDefault);
+            Arrays.fill(from, bestDefaultFrom);
+            // the counted transitions, only from the kept states
+            for (int k = 0; k < nbActive; k++) {
+                int i = active[k];
+                double s = activeScore[k];
+                int succ = model.successorCount(i);
+                transitions += succ;
+                for (int e = 0; e < succ; e++) {
+                    int j = model.successor(i, e);
+                    double v = s + model.successorLogProb(i, e);
+                    if (v > score[j]) {
+                        score[j] = v;
+                        from[j] = i;
+                    }
+                }
+            }
+            for (int j = 0; j < n; j++) {
+                score[j] += emission(j, seq[t]);
+            }
+            nbActive = prune(score, active, activeScore);
+            keep(keptStates, keptFrom, t, active, nbActive, from);
+            stateSteps += n;
+            keptSteps += nbActive;
+        }
+
+        // best last state, then back along the kept states
+        int best = 0;
+        for (int k = 1; k < nbActive; k++) {
+            if (activeScore[k] > activeScore[best]) {
+                best = k;
+            }
+        }
+        if (logProb != null) {
+            logProb[0] = activeScore[best];
+        }
+        int[] path = new int[len];
+        int state = active[best];
+        for (int t = len - 1; t >= 0; t--) {
+            path[t] = state;
+            if (t > 0) {
+                state = fromOf(keptStates[t], keptFrom[t], state);
+            }
+        }
+        return path;
+    }
+
+    /**
+     * Keep the states within the beam, at most beamWidth of them
+     *
+     * @return the number of states kept in active
+     */
+    private int prune(double[] score, int[] active, double[] activeScore) {
+        double best = Double.NEGATIVE_INFINITY;
+        for (int j = 0; j < n; j++) {
+            if (score[j] > best) {
+                best = score[j];
+            }
+        }
+        double floor = best - logBeam;
+        if (beamWidth < n) {
+            // the score of the last state of the width, when it is higher:
+            // the beamWidth best scores within the beam go through a min-heap,
+            // in activeScore which is only filled below
+            double[] heap = activeScore;
+            int size = 0;
+            for (int j = 0; j < n; j++) {
+                double v = score[j];
+                if (v < floor || v == Double.NEGATIVE_INFINITY) {
+                    continue;
+                }
+                if (size < beamWidth) {
+                    siftUp(heap, size++, v);
+                } else if (v > heap[0]) {
+                    siftDown(heap, size, v);
+                }
+            }
+            if (size == beamWidth) {
+                floor = Math.max(floor, heap[0]);
+            }
+        }
+        int nb = 0;
+        for (int j = 0; j < n && nb < beamWidth; j++) {
+            if (score[j] >= floor && score[j] > Double.NEGATIVE_INFINITY) {
+                active[nb] = j;
+                activeScore[nb] = score[j];
+                nb++;
+            }
+        }
+        return nb;
+    }
+
+    /**
+     * Add v to a min-heap of size elements
+     */
+    private static void siftUp(double[] heap, int size, double v) {
+        int k = size;
+        while (k > 0) {
+            int parent = (k - 1) >>> 1;
+            if (heap[parent] <= v) {
+                break;
+            }
+            heap[k] = heap[parent];
+            k = parent;
+        }
+        heap[k] = v;
+    }
+
+    /**
+     * Replace the smallest of a min-heap of size elements by v
+     */
+    private static void siftDown(double[] heap, int size, double v) {
+        int k = 0;
+        int half = size >>> 1;
+        while (k < half) {
+            int child = 2 * k + 1;
+            if (child + 1 < size && heap[child + 1] < heap[child]) {
+                child++;
+            }
+            if (v <= heap[child]) {
+                break;
+            }
+            heap[k] = heap[child];
+            k = child;
+        }
+        heap[k] = v;
+    }
+
+    private static void keep(int[][] keptStates, int[][] keptFrom, int t, int[] active, int nb, int[] from) {
+        int[] st = Arrays.copyOf(active, nb);
+        int[] fr = new int[nb];
+        for (int k = 0; k < nb; k++) {
+            fr[k] = from[st[k]];
+        }
+        keptStates[t] = st;
+        keptFrom[t] = fr;
+    }
+
+    /**
+     * Where state came from, the kept states are sorted by index
+     */
+    private static int fromOf(int[] states, int[] from, int state) {
+        return from[Arrays.binarySearch(states, state)];
+    }
+
+    private float emission(int j, int symbol) {
+        return symbol < 0 ? model.emissionDefaultLogProb(j) : model.emissionLogProb(j, symbol);
+    }
+
+    /**
+     * Number of (step, state) pairs of the last decoding, T * N
+     *
+     * @return
+     */
+    public long getStateSteps() {
+        return stateSteps;
+    }
+
+    /**
+     * Number of (step, state) pairs kept by the pruning
+     *
+     * @return
+     */
+    public long getKeptSteps() {
+        return keptSteps;
+    }
+
+    /**
+     * Fraction of the state space that was pruned in the last decoding
+     *
+     * @return between 0 (exact) and 1
+     */
+    public double getPrunedRatio() {
+        return stateSteps == 0 ? 0 : 1.0 - (double) keptSteps / stateSteps;
+    }
+
+    /**
+     * Counted transitions visited in the last decoding, a full decoding
+     * visits (T - 1) * N * N
+     *
+     * @return
+     */
+    public long getTransitionsVisited() {
+        return transitions;
+    }
+
+    public String getStats() {
+        return "states kept " + keptSteps + " / " + stateSteps + " (" + Math.round(100 * getPrunedRatio())
+                + "% pruned), transitions visited " + transitions;
+    }
+}
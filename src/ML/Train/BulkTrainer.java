@@ -0,0 +1,249 @@
+/*
+ * Training over many recordings: reading a WAV file waits on the disk, finding
+ * the beats and segmenting them keeps a processor busy. Instead of doing one
+ * after the other for each file, the recordings go through a Pipeline:
+ *
+ *   decode   (virtual threads)   File => AudioSamples, or the stored
+ *                                Observations when the FeatureStore has them
+ *   beats    (processors)        normalize, FindBeats
+ *   segment  (processors)        Segmentation, names of the Observations
+ *
+ * While some files are read, the ones already read are processed. The
+ * Observations of each recording come out in the order of the files, so the
+ * counts are the same as with a sequential training.
+ */
+package ML.Train;
+
+import ML.Classify.ObservationStore;
+import ML.Classify.PDefFeats;
+import ML.featureDetection.FindBeats;
+import ML.featureDetection.NormalizeBeat;
+import ML.featureDetection.TrainOne;
+import Misc.Tools.Pipeline;
+import Misc.sampled.AudioSamples;
+import Misc.sampled.AudioSamplesCache;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SubmissionPublisher;
+
+/**
+ *
+ * Extracts the Observations of many recordings with overlapping I/O and
+ * processing
+ */
+public class BulkTrainer {
+
+    private final TrainOne trainOne;
+    private final int ioWorkers;
+    private final int cpuWorkers;
+    private FeatureStore store = null;
+    private boolean withSignatures = false;
+    private Pipeline last = null;
+
+    /**
+     * @param trainOne does the processing of one recording (and knows the
+     * codebook)
+     */
+    public BulkTrainer(TrainOne trainOne) {
+        this(trainOne, 8, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param trainOne
+     * @param ioWorkers files read at the same time
+     * @param cpuWorkers recordings processed at the same time, per stage
+     */
+    public BulkTrainer(TrainOne trainOne, int ioWorkers, int cpuWorkers) {
+        this.trainOne = trainOne;
+        this.ioWorkers = ioWorkers;
+        this.cpuWorkers = cpuWorkers;
+    }
+
+    /**
+     * Read and keep the Observations in a feature store, the recordings found
+     * there are not decoded
+     *
+     * @param fs
+     */
+    public void setFeatureStore(FeatureStore fs) {
+        store = fs;
+    }
+
+    /**
+     * Keep the signatures, needed when a codebook names the Observations
+     *
+     * @param keep
+     */
+    public void setWithSignatures(boolean keep) {
+        withSignatures = keep;
+    }
+
+    /**
+     * The Observations of each recording, in the order of the recordings
+     *
+     * @param recordings
+     * @param predef the predefined features of each recording
+     * @return
+     * @throws Exception the first failure of a recording
+     */
+    public List<ObservationStore> extractAll(List<File> recordings, List<PDefFeats> predef) throws Exception {
+        final ArrayList<ObservationStore> result = new ArrayList<ObservationStore>(recordings.size());
+        run(recordings, predef, new Pipeline.Sink() {
+            public void accept(Object in, Object out) {
+                result.add((ObservationStore) out);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * The training counts of all the recordings, counted as they come out of
+     * the pipeline, without keeping their Observations
+     *
+     * @param recordings
+     * @param predef
+     * @return
+     * @throws Exception
+     */
+    public HMMCounts countAll(List<File> recordings, List<PDefFeats> predef) throws Exception {
+        final HMMCounts counts = new HMMCounts();
+        run(recordings, predef, new Pipeline.Sink() {
+            public void accept(Object in, Object out) {
+                counts.count((ObservationStore) out);
+            }
+        });
+        return counts;
+    }
+
+    /**
+     * Publish the Observations of each recording as soon as it is processed,
+     * in the order of the recordings. The publisher is closed at the end, or
+     * closed with the exception of the first failure. A subscriber that does
+     * not keep up makes the pipeline wait.
+     *
+     * @param recordings
+     * @param predef
+     * @param publisher
+     * @throws Exception
+     */
+    public void publishAll(List<File> recordings, List<PDefFeats> predef,
+            final SubmissionPublisher<ObservationStore> publisher) throws Exception {
+        try {
+            run(recordings, predef, new Pipeline.Sink() {
+                public void accept(Object in, Object out) {
+                    publisher.submit((ObservationStore) out);
+                }
+            });
+        } catch (Exception ex) {
+            publisher.closeExceptionally(ex);
+            throw ex;
+        }
+        publisher.close();
+    }
+
+    /**
+     * Time spent by each stage during the last run
+     *
+     * @return
+     */
+    public String getStats() {
+        return last == null ? "" : last.getStats();
+    }
+
+    private void run(List<File> recordings, List<PDefFeats> predef, Pipeline.Sink sink) throws Exception {
+        ArrayList<Job> jobs = new ArrayList<Job>(recordings.size());
+        for (int idx = 0; idx < recordings.size(); idx++) {
+            jobs.add(new Job(recordings.get(idx), predef.get(idx)));
+        }
+        ExecutorService io = Pipeline.ioExecutor();
+        ExecutorService cpu = Executors.newFixedThreadPool(2 * cpuWorkers);
+        try {
+            Pipeline p = new Pipeline(4 * (ioWorkers + 2 * cpuWorkers))
+                    .stage("decode", new Pipeline.Stage() {
+                        public Object apply(Object in) throws Exception {
+                            return decode((Job) in);
+                        }
+                    }, io, ioWorkers)
+                    .stage("beats", new Pipeline.Stage() {
+                        public Object apply(Object in) throws Exception {
+                            return beats((Job) in);
+                        }
+                    }, cpu, cpuWorkers)
+                    .stage("segment", new Pipeline.Stage() {
+                        public Object apply(Object in) throws Exception {
+                            return segment((Job) in);
+                        }
+                    }, cpu, cpuWorkers);
+            last = p;
+            p.run(jobs, sink);
+        } finally {
+            io.shutdown();
+            cpu.shutdown();
+        }
+    }
+
+    private Job decode(Job job) throws Exception {
+        if (store != null) {
+            job.hash = trainOne.recordKey(job.file, job.pdf);
+            job.obs = store.get(job.hash, withSignatures, job.pdf);
+            if (job.obs != null) {
+                return job;
+            }
+        }
+        AudioSamples audio = AudioSamplesCache.shared().get(job.file, false);
+        job.samples = audio.getSamplesMixedDown();
+        job.rate = audio.getSamplingRate();
+        return job;
+    }
+
+    private Job beats(Job job) throws Exception {
+        if (job.obs == null) {
+            job.beats = trainOne.detectBeats(job.samples, job.rate, job.pdf, new NormalizeBeat());
+            job.samples = null;
+        }
+        return job;
+    }
+
+    private ObservationStore segment(Job job) throws Exception {
+        if (job.obs != null) {
+            return job.obs;
+        }
+        ArrayList beats = trainOne.segment(job.beats, job.rate, job.pdf);
+        if (store != null || withSignatures) {
+            TrainOne.makeSignatures(beats, job.beats);
+        }
+        job.beats = null;
+        if (store != null) {
+            // the store keeps the signatures, whatever this run needs
+            ObservationStore full = new ObservationStore(true, beats.size());
+            full.addAll(beats);
+            store.put(job.hash, full);
+        }
+        ObservationStore obs = new ObservationStore(withSignatures, beats.size());
+        obs.addAll(beats);
+        obs.trimToSize();
+        return obs;
+    }
+
+    /**
+     * One recording on its way through the stages
+     */
+    private static class Job {
+
+        final File file;
+        final PDefFeats pdf;
+        String hash;
+        float[] samples;
+        float rate;
+        FindBeats beats;
+        ObservationStore obs;
+
+        Job(File file, PDefFeats pdf) {
+            this.file = file;
+            this.pdf = pdf;
+        }
+    }
+}
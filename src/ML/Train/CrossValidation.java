@@ -0,0 +1,638 @@
+/*
+ * k-fold cross-validation of the whole chain, from the WAV files to the
+ * classification, without the GUI.
+ *
+ * The manifest is a text file with one recording per line, its path and its
+ * label separated by spaces or a tab:
+ *
+ *   # comment
+ *   normal/a0001.wav     normal
+ *   abnormal/a0007.wav   abnormal
+ *
+ * Relative paths are relative to the directory of the manifest.
+ *
+ *   extract  the Observations of every recording, once, through BulkTrainer
+ *            (and its FeatureStore when there is one, so a second run with
+ *            the same processing does not decode anything)
+ *   count    the HMMCounts of each recording, in parallel, then one shard
+ *            per fold and per label
+ *   train    for each fold, one model per label made from the shards of the
+ *            other folds, the k folds in parallel
+ *   score    each held-out recording gets the label of the model with the
+ *            highest forward log likelihood, in batches (BatchScorer). The
+ *            models of a fold share the Observations of all the classes.
+ *
+ * The folds are stratified: the recordings of each label are shuffled with a
+ * fixed seed and dealt round the folds, so two runs on the same manifest use
+ * the same folds and can be compared.
+ */
+package ML.Train;
+
+import ML.Classify.ObservationKey;
+import ML.Classify.ObservationStore;
+import ML.Classify.PDefFeats;
+import ML.featureDetection.TrainOne;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ *
+ * Parallel k-fold cross-validation over a labelled manifest of recordings
+ */
+public class CrossValidation {
+
+    private final BulkTrainer trainer;
+    private final int folds;
+    private final ForkJoinPool pool;
+    private String positive = "abnormal";
+    private long seed = 1;
+
+    // wall clock of each stage of the last run, in the order of the stages
+    private final LinkedHashMap<String, Long> stageNanos = new LinkedHashMap<String, Long>();
+
+    /**
+     * @param trainer extracts the Observations of the recordings
+     * @param folds
+     */
+    public CrossValidation(BulkTrainer trainer, int folds) {
+        this(trainer, folds, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param trainer extracts the Observations of the recordings
+     * @param folds at least 2
+     * @param pool counts, trains and scores
+     */
+    public CrossValidation(BulkTrainer trainer, int folds, ForkJoinPool pool) {
+        if (folds < 2) {
+            throw new IllegalArgumentException("Wrong number of folds " + folds);
+        }
+        this.trainer = trainer;
+        this.folds = folds;
+        this.pool = pool;
+    }
+
+    /**
+     * The label whose recordings are the positives of the sensitivity, the
+     * other labels are the negatives
+     *
+     * @param label "abnormal" by default
+     */
+    public void setPositiveLabel(String label) {
+        positive = label;
+    }
+
+    /**
+     * Seed of the shuffling of the recordings into the folds
+     *
+     * @param seed
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Read a manifest, see above
+     *
+     * @param manifest
+     * @param files receives the recordings
+     * @param labels receives their labels
+     * @throws IOException
+     */
+    public static void readManifest(File manifest, List<File> files, List<String> labels) throws IOException {
+        File dir = manifest.getAbsoluteFile().getParentFile();
+        BufferedReader in = new BufferedReader(new FileReader(manifest));
+        try {
+            String line;
+            int nb = 0;
+            while ((line = in.readLine()) != null) {
+                nb++;
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                // the label is the last word, a path may have spaces
+                int sp = Math.max(line.lastIndexOf(' '), line.lastIndexOf('\t'));
+                if (sp < 0) {
+                    throw new IOException(manifest + ":" + nb + ": no label");
+                }
+                File f = new File(line.substring(0, sp).trim());
+                files.add(f.isAbsolute() ? f : new File(dir, f.getPath()));
+                labels.add(line.substring(sp + 1));
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Cross-validate the recordings of a manifest
+     *
+     * @param manifest
+     * @return
+     * @throws Exception
+     */
+    public Result run(File manifest) throws Exception {
+        ArrayList<File> files = new ArrayList<File>();
+        ArrayList<String> labels = new ArrayList<String>();
+        readManifest(manifest, files, labels);
+        return run(files, labels);
+    }
+
+    /**
+     * @param recordings
+     * @param labels the label of each recording
+     * @return
+     * @throws Exception the first failure of a recording
+     */
+    public Result run(List<File> recordings, List<String> labels) throws Exception {
+        stageNanos.clear();
+        long t0 = System.nanoTime();
+        ArrayList<PDefFeats> predef = new ArrayList<PDefFeats>(recordings.size());
+        for (int idx = 0; idx < recordings.size(); idx++) {
+            predef.add(new PDefFeats());
+        }
+        List<ObservationStore> features = trainer.extractAll(recordings, predef);
+        stageNanos.put("extract", Long.valueOf(System.nanoTime() - t0));
+        return crossValidate(features, labels);
+    }
+
+    /**
+     * Cross-validate Observations already extracted, the stages after
+     * "extract"
+     *
+     * @param features the Observations of each recording
+     * @param labels the label of each recording
+     * @return
+     * @throws Exception
+     */
+    public Result evaluate(List<ObservationStore> features, List<String> labels) throws Exception {
+        stageNanos.clear();
+        return crossValidate(features, labels);
+    }
+
+    private Result crossValidate(final List<ObservationStore> features, List<String> labels) throws Exception {
+        if (features.size() != labels.size()) {
+            throw new IllegalArgumentException(features.size() + " recordings for " + labels.size() + " labels");
+        }
+        String[] names = new TreeSet<String>(labels).toArray(new String[0]);
+        final int nbLabels = names.length;
+        final int[] label = new int[labels.size()];
+        for (int idx = 0; idx < label.length; idx++) {
+            label[idx] = indexOf(names, labels.get(idx));
+        }
+        final int[] fold = assignFolds(label, nbLabels);
+
+        // one shard per fold and label, made from the counts of each recording
+        long t0 = System.nanoTime();
+        ArrayList<Callable<HMMCounts>> counting = new ArrayList<Callable<HMMCounts>>();
+        for (int idx = 0; idx < features.size(); idx++) {
+            final ObservationStore store = features.get(idx);
+            counting.add(new Callable<HMMCounts>() {
+                public HMMCounts call() {
+                    HMMCounts c = new HMMCounts();
+                    c.count(store);
+                    return c;
+                }
+            });
+        }
+        List<HMMCounts> counts = all(counting);
+        final HMMCounts[][] shards = new HMMCounts[folds][nbLabels];
+        for (int f = 0; f < folds; f++) {
+            for (int l = 0; l < nbLabels; l++) {
+                shards[f][l] = new HMMCounts();
+            }
+        }
+        for (int idx = 0; idx < counts.size(); idx++) {
+            shards[fold[idx]][label[idx]].merge(counts.get(idx));
+        }
+        stageNanos.put("count", Long.valueOf(System.nanoTime() - t0));
+
+        // the models of the k folds, trained at the same time
+        t0 = System.nanoTime();
+        ArrayList<Callable<DenseHMM[]>> training = new ArrayList<Callable<DenseHMM[]>>();
+        for (int f = 0; f < folds; f++) {
+            final int heldOut = f;
+            training.add(new Callable<DenseHMM[]>() {
+                public DenseHMM[] call() {
+                    HMMCounts[] c = new HMMCounts[nbLabels];
+                    // the Observations of all the classes, see DenseHMM.fromCounts
+                    HashSet<ObservationKey> alphabet = new HashSet<ObservationKey>();
+                    for (int l = 0; l < nbLabels; l++) {
+                        c[l] = new HMMCounts();
+                        for (int g = 0; g < folds; g++) {
+                            if (g != heldOut) {
+                                c[l].merge(shards[g][l]);
+                            }
+                        }
+                        alphabet.addAll(c[l].stateForObservationCounts.keySet());
+                    }
+                    DenseHMM[] models = new DenseHMM[nbLabels];
+                    for (int l = 0; l < nbLabels; l++) {
+                        // no recording of this label to learn from
+                        if (!c[l].hidnStatesCounts.isEmpty()) {
+                            HMM hmm = c[l].toHMM();
+                            hmm.compile();
+                            models[l] = DenseHMM.fromCounts(hmm, alphabet);
+                        }
+                    }
+                    return models;
+                }
+            });
+        }
+        final List<DenseHMM[]> models = all(training);
+        stageNanos.put("train", Long.valueOf(System.nanoTime() - t0));
+
+        // the held-out recordings of each fold against its models
+        t0 = System.nanoTime();
+        ArrayList<Callable<int[]>> scoring = new ArrayList<Callable<int[]>>();
+        for (int f = 0; f < folds; f++) {
+            final int heldOut = f;
+            scoring.add(new Callable<int[]>() {
+                public int[] call() {
+                    return predict(models.get(heldOut), features, fold, heldOut);
+                }
+            });
+        }
+        List<int[]> predicted = all(scoring);
+        stageNanos.put("score", Long.valueOf(System.nanoTime() - t0));
+
+        Result res = new Result(names, indexOf(names, positive), folds);
+        for (int f = 0; f < folds; f++) {
+            int[] pred = predicted.get(f);
+            int k = 0;
+            for (int idx = 0; idx < label.length; idx++) {
+                if (fold[idx] == f) {
+                    res.add(f, label[idx], pred[k++]);
+                }
+            }
+        }
+        return res;
+    }
+
+    /**
+     * The label predicted for each recording of the held-out fold, in the
+     * order of the recordings, or -1 when no model gave it a finite score
+     */
+    private int[] predict(DenseHMM[] models, List<ObservationStore> features, int[] fold, int heldOut) {
+        ArrayList<ObservationStore> test = new ArrayList<ObservationStore>();
+        for (int idx = 0; idx < fold.length; idx++) {
+            if (fold[idx] == heldOut) {
+                test.add(features.get(idx));
+            }
+        }
+        double[] best = new double[test.size()];
+        int[] pred = new int[test.size()];
+        Arrays.fill(best, Double.NEGATIVE_INFINITY);
+        Arrays.fill(pred, -1);
+        for (int l = 0; l < models.length; l++) {
+            if (models[l] == null) {
+                continue;
+            }
+            ArrayList<int[]> seqs = new ArrayList<int[]>(test.size());
+            for (int r = 0; r < test.size(); r++) {
+                seqs.add(models[l].encode(test.get(r)));
+            }
+            double[] scores = new BatchScorer(models[l], BatchScorer.DEFAULT_LANES, pool).logLikelihoodsOf(seqs);
+            for (int r = 0; r < scores.length; r++) {
+                if (scores[r] > best[r]) {
+                    best[r] = scores[r];
+                    pred[r] = l;
+                }
+            }
+        }
+        return pred;
+    }
+
+    /**
+     * The fold of each recording: the recordings of each label are shuffled
+     * and dealt one per fold in turn
+     */
+    private int[] assignFolds(int[] label, int nbLabels) {
+        int[] fold = new int[label.length];
+        Random rnd = new Random(seed);
+        int next = 0;
+        for (int l = 0; l < nbLabels; l++) {
+            ArrayList<Integer> idx = new ArrayList<Integer>();
+            for (int r = 0; r < label.length; r++) {
+                if (label[r] == l) {
+                    idx.add(Integer.valueOf(r));
+                }
+            }
+            Collections.shuffle(idx, rnd);
+            for (int k = 0; k < idx.size(); k++) {
+                fold[idx.get(k).intValue()] = next;
+                next = (next + 1) % folds;
+            }
+        }
+        return fold;
+    }
+
+    private <T> List<T> all(List<Callable<T>> tasks) throws Exception {
+        ArrayList<T> res = new ArrayList<T>(tasks.size());
+        List<Future<T>> futures = pool.invokeAll(tasks);
+        for (int idx = 0; idx < futures.size(); idx++) {
+            try {
+                res.add(futures.get(idx).get());
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof Exception) {
+                    throw (Exception) cause;
+                }
+                throw ex;
+            }
+        }
+        return res;
+    }
+
+    private static int indexOf(String[] names, String name) {
+        for (int idx = 0; idx < names.length; idx++) {
+            if (names[idx].equals(name)) {
+                return idx;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Wall clock of a stage of the last run
+     *
+     * @param stage "extract", "count", "train" or "score"
+     * @return in nanoseconds, 0 when the stage did not run
+     */
+    public long getStageNanos(String stage) {
+        Long n = stageNanos.get(stage);
+        return n == null ? 0 : n.longValue();
+    }
+
+    /**
+     * Wall clock of each stage of the last run
+     *
+     * @return
+     */
+    public String getStageTimes() {
+        StringBuilder sb = new StringBuilder();
+        long total = 0;
+        for (Map.Entry<String, Long> e : stageNanos.entrySet()) {
+            sb.append(String.format("%-8s %8.1f ms%n", e.getKey(), e.getValue().longValue() / 1e6));
+            total += e.getValue().longValue();
+        }
+        sb.append(String.format("%-8s %8.1f ms%n", "total", total / 1e6));
+        return sb.toString();
+    }
+
+    /**
+     * Confusion matrix of a cross-validation, over all the folds
+     *
+     * Recordings that no model could score (no model for any label, or -inf
+     * from all of them) are not predicted: they are counted apart, and as
+     * wrong in the accuracy.
+     */
+    public static class Result {
+
+        private final String[] labels;
+        private final int positive;
+        // [actual][predicted]
+        private final int[][] confusion;
+        // [actual], recordings without a prediction
+        private final int[] unpredicted;
+        private final int[] foldTotal;
+        private final int[] foldCorrect;
+
+        Result(String[] labels, int positive, int folds) {
+            this.labels = labels;
+            this.positive = positive;
+            confusion = new int[labels.length][labels.length];
+            unpredicted = new int[labels.length];
+            foldTotal = new int[folds];
+            foldCorrect = new int[folds];
+        }
+
+        /**
+         * @param predicted -1 when the recording was not predicted
+         */
+        void add(int fold, int actual, int predicted) {
+            if (predicted < 0) {
+                unpredicted[actual]++;
+            } else {
+                confusion[actual][predicted]++;
+            }
+            foldTotal[fold]++;
+            if (actual == predicted) {
+                foldCorrect[fold]++;
+            }
+        }
+
+        public String[] getLabels() {
+            return labels.clone();
+        }
+
+        /**
+         * @param actual index in getLabels()
+         * @param predicted index in getLabels()
+         * @return number of recordings
+         */
+        public int getCount(int actual, int predicted) {
+            return confusion[actual][predicted];
+        }
+
+        /**
+         * @param actual index in getLabels()
+         * @return number of recordings of that label that were not predicted
+         */
+        public int getUnpredicted(int actual) {
+            return unpredicted[actual];
+        }
+
+        public int getUnpredicted() {
+            int n = 0;
+            for (int l = 0; l < labels.length; l++) {
+                n += unpredicted[l];
+            }
+            return n;
+        }
+
+        public int getTotal() {
+            int n = 0;
+            for (int idx = 0; idx < foldTotal.length; idx++) {
+                n += foldTotal[idx];
+            }
+            return n;
+        }
+
+        public double getAccuracy() {
+            int correct = 0;
+            for (int l = 0; l < labels.length; l++) {
+                correct += confusion[l][l];
+            }
+            return ratio(correct, getTotal());
+        }
+
+        /**
+         * Accuracy of one fold
+         *
+         * @param fold
+         * @return
+         */
+        public double getAccuracy(int fold) {
+            return ratio(foldCorrect[fold], foldTotal[fold]);
+        }
+
+        /**
+         * Positives found positive, NaN when there is no positive label.
+         * Unpredicted positives are false negatives.
+         *
+         * @return TP / (TP + FN)
+         */
+        public double getSensitivity() {
+            if (positive < 0) {
+                return Double.NaN;
+            }
+            int total = unpredicted[positive];
+            for (int l = 0; l < labels.length; l++) {
+                total += confusion[positive][l];
+            }
+            return ratio(confusion[positive][positive], total);
+        }
+
+        /**
+         * Negatives found negative, NaN when there is no positive label.
+         * Unpredicted negatives are not true negatives.
+         *
+         * @return TN / (TN + FP)
+         */
+        public double getSpecificity() {
+            if (positive < 0) {
+                return Double.NaN;
+            }
+            int negatives = 0;
+            int falsePos = 0;
+            int notPredicted = 0;
+            for (int l = 0; l < labels.length; l++) {
+                if (l == positive) {
+                    continue;
+                }
+                for (int p = 0; p < labels.length; p++) {
+                    negatives += confusion[l][p];
+                }
+                falsePos += confusion[l][positive];
+                notPredicted += unpredicted[l];
+            }
+            return ratio(negatives - falsePos, negatives + notPredicted);
+        }
+
+        private static double ratio(int a, int b) {
+            return b == 0 ? Double.NaN : (double) a / b;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("recordings %d, not predicted %d, accuracy %.3f, sensitivity %.3f, specificity %.3f%n",
+                    getTotal(), getUnpredicted(), getAccuracy(), getSensitivity(), getSpecificity()));
+            sb.append("actual \\ predicted");
+            for (int p = 0; p < labels.length; p++) {
+                sb.append('\t').append(labels[p]);
+            }
+            sb.append("\tnone");
+            sb.append(String.format("%n"));
+            for (int l = 0; l < labels.length; l++) {
+                sb.append(labels[l]);
+                for (int p = 0; p < labels.length; p++) {
+                    sb.append('\t').append(confusion[l][p]);
+                }
+                sb.append('\t').append(unpredicted[l]);
+                sb.append(String.format("%n"));
+            }
+            for (int f = 0; f < foldTotal.length; f++) {
+                sb.append(String.format("fold %d: %d recordings, accuracy %.3f%n", f, foldTotal[f], getAccuracy(f)));
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Cross-validate from the command line
+     *
+     * @param args manifest [--folds k] [--store dir] [--variant name]
+     * [--codebook file] [--positive label] [--seed n]
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        File manifest = null;
+        int k = 5;
+        File storeDir = null;
+        String variant = null;
+        SignatureCodebook codebook = null;
+        String positive = null;
+        long seed = 1;
+        for (int idx = 0; idx < args.length; idx++) {
+            String a = args[idx];
+            if (a.equals("--folds") && idx + 1 < args.length) {
+                k = Integer.parseInt(args[++idx]);
+            } else if (a.equals("--store") && idx + 1 < args.length) {
+                storeDir = new File(args[++idx]);
+            } else if (a.equals("--variant") && idx + 1 < args.length) {
+                variant = args[++idx];
+            } else if (a.equals("--codebook") && idx + 1 < args.length) {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(args[++idx])));
+                try {
+                    codebook = SignatureCodebook.read(in);
+                } finally {
+                    in.close();
+                }
+            } else if (a.equals("--positive") && idx + 1 < args.length) {
+                positive = args[++idx];
+            } else if (a.equals("--seed") && idx + 1 < args.length) {
+                seed = Long.parseLong(args[++idx]);
+            } else if (manifest == null && !a.startsWith("--")) {
+                manifest = new File(a);
+            } else {
+                manifest = null;
+                break;
+            }
+        }
+        if (manifest == null) {
+            System.err.println("Usage: CrossValidation manifest [--folds k] [--store dir] [--variant name]"
+                    + " [--codebook file] [--positive label] [--seed n]");
+            System.exit(2);
+        }
+
+        TrainOne one = new TrainOne();
+        BulkTrainer trainer = new BulkTrainer(one);
+        if (codebook != null) {
+            // also in the key of the Observations in the store
+            one.setCodebook(codebook);
+        }
+        if (storeDir != null) {
+            trainer.setFeatureStore(new FeatureStore(storeDir, variant));
+        }
+        CrossValidation cv = new CrossValidation(trainer, k);
+        if (positive != null) {
+            cv.setPositiveLabel(positive);
+        }
+        cv.setSeed(seed);
+        Result res = cv.run(manifest);
+        System.out.print(res);
+        System.out.print(cv.getStageTimes());
+        System.out.println(trainer.getStats());
+    }
+}
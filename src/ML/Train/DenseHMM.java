@@ -0,0 +1,236 @@
+package ML.Train;
+
+import ML.Classify.Observation;
+import ML.Classify.ObservationKey;
+import ML.Classify.ObservationStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * A HMM with its probabilities in dense arrays: N hidden states (the full
+ * names like "S2.7") and M observation symbols (the ObservationKeys).
+ *
+ * pi[i] is the probability to start in state i, a[i * N + j] the probability
+ * of the transition from state i to state j and b[i * M + m] the probability
+ * that state i emits symbol m. Each row sums to 1.
+ *
+ * It is the form used by the Forward-Backward and Baum-Welch algorithms, it
+ * is seeded from the counts of a trained HMM.
+ *
+ */
+public class DenseHMM {
+
+    final int n;
+    final int m;
+    final String[] states;
+    final ObservationKey[] symbols;
+    private final HashMap<String, Integer> stateIndex;
+    private final HashMap<ObservationKey, Integer> symbolIndex;
+    final double[] pi;
+    final double[] a;
+    final double[] b;
+    // probability that state i emits a symbol outside the alphabet, null when
+    // such a symbol tells nothing (probability 1 in every state)
+    final double[] unseen;
+
+    DenseHMM(String[] states, ObservationKey[] symbols, double[] pi, double[] a, double[] b) {
+        this(states, symbols, pi, a, b, null);
+    }
+
+    DenseHMM(String[] states, ObservationKey[] symbols, double[] pi, double[] a, double[] b, double[] unseen) {
+        this.unseen = unseen;
+        this.n = states.length;
+        this.m = symbols.length;
+        this.states = states;
+        this.symbols = symbols;
+        this.pi = pi;
+        this.a = a;
+        this.b = b;
+        stateIndex = new HashMap<String, Integer>();
+        for (int idx = 0; idx < n; idx++) {
+            stateIndex.put(states[idx], Integer.valueOf(idx));
+        }
+        symbolIndex = new HashMap<ObservationKey, Integer>();
+        for (int idx = 0; idx < m; idx++) {
+            symbolIndex.put(symbols[idx], Integer.valueOf(idx));
+        }
+    }
+
+    /**
+     * Seed a dense model from a trained (counted) HMM, with the same add-one
+     * smoothing as calcPriorProbState and calcLikelihood, each row being
+     * normalized to sum to 1. The start probabilities are the state
+     * frequencies. An Observation the HMM never saw has the add-one default
+     * of calcLikelihood, 1 / (count(state) + number of Observations), so
+     * the scores of a recording against several models can be compared.
+     *
+     * @param hmm
+     * @return
+     */
+    public static DenseHMM fromCounts(HMM hmm) {
+        ArrayList<ObservationKey> sy = new ArrayList<ObservationKey>();
+        Iterator it = hmm.stateForObservationCounts.keySet().iterator();
+        while (it.hasNext()) {
+            sy.add((ObservationKey) it.next());
+        }
+        return fromCounts(hmm, sy);
+    }
+
+    /**
+     * Same as above with a given alphabet, for instance the Observations of
+     * all the classes. The symbols the HMM never counted get the same add-one
+     * default as the ones outside the alphabet.
+     *
+     * @param hmm
+     * @param symbols
+     * @return
+     */
+    public static DenseHMM fromCounts(HMM hmm, Collection<ObservationKey> symbols) {
+        String[] st = (String[]) hmm.hidnStatesCounts.keySet().toArray(new String[0]);
+        Arrays.sort(st);
+        ObservationKey[] symb = symbols.toArray(new ObservationKey[0]);
+        int n = st.length;
+        int m = symb.length;
+        double[] pi = new double[n];
+        double[] a = new double[n * n];
+        double[] b = new double[n * m];
+        double[] unseen = new double[n];
+        int vocab = hmm.stateForObservationCounts.keySet().size();
+
+        double total = 0;
+        for (int i = 0; i < n; i++) {
+            pi[i] = HMMutilities.countStates(hmm.hidnStatesCounts, st[i]);
+            total += pi[i];
+        }
+        for (int i = 0; i < n; i++) {
+            pi[i] = total > 0 ? pi[i] / total : 1.0 / n;
+            for (int j = 0; j < n; j++) {
+                a[i * n + j] = hmm.calcPriorProbState(st[i], st[j]);
+            }
+            normalize(a, i * n, n);
+            double sum = 0;
+            for (int k = 0; k < m; k++) {
+                b[i * m + k] = hmm.calcLikelihood(st[i], symb[k]);
+                sum += b[i * m + k];
+            }
+            normalize(b, i * m, m);
+            // scaled as the row
+            double dflt = 1.0 / (HMMutilities.countStates(hmm.hidnStatesCounts, st[i]) + vocab);
+            unseen[i] = sum > 0 ? dflt / sum : dflt;
+        }
+        return new DenseHMM(st, symb, pi, a, b, unseen);
+    }
+
+    static void normalize(double[] v, int off, int len) {
+        double sum = 0;
+        for (int idx = off; idx < off + len; idx++) {
+            sum += v[idx];
+        }
+        if (sum <= 0) {
+            Arrays.fill(v, off, off + len, 1.0 / len);
+            return;
+        }
+        for (int idx = off; idx < off + len; idx++) {
+            v[idx] /= sum;
+        }
+    }
+
+    /**
+     * The symbols of a sequence of Observations, -1 for an Observation that
+     * is not in the alphabet of the model
+     *
+     * @param observations
+     * @return
+     */
+    public int[] encode(ArrayList observations) {
+        int[] seq = new int[observations.size()];
+        for (int idx = 0; idx < seq.length; idx++) {
+            seq[idx] = symbolIndex(((Observation) observations.get(idx)).getKey());
+        }
+        return seq;
+    }
+
+    /**
+     * Same as above for the Observations of a store
+     *
+     * @param store
+     * @return
+     */
+    public int[] encode(ObservationStore store) {
+        int[] seq = new int[store.size()];
+        for (int idx = 0; idx < seq.length; idx++) {
+            seq[idx] = symbolIndex(store.key(idx));
+        }
+        return seq;
+    }
+
+    public int symbolIndex(ObservationKey key) {
+        Integer idx = symbolIndex.get(key);
+        return idx == null ? -1 : idx.intValue();
+    }
+
+    public int stateIndex(String state) {
+        Integer idx = stateIndex.get(state);
+        return idx == null ? -1 : idx.intValue();
+    }
+
+    /**
+     * Probability that state i emits symbol o. A symbol outside the alphabet
+     * (-1) has the add-one default of state i when the model was made from
+     * counts, else it gives no information (probability 1 in every state).
+     */
+    final double emission(int i, int o) {
+        if (o < 0) {
+            return unseen == null ? 1.0 : unseen[i];
+        }
+        return b[i * m + o];
+    }
+
+    public int getNbStates() {
+        return n;
+    }
+
+    public int getNbSymbols() {
+        return m;
+    }
+
+    public String getState(int i) {
+        return states[i];
+    }
+
+    public double getStart(int i) {
+        return pi[i];
+    }
+
+    public double getTransition(int i, int j) {
+        return a[i * n + j];
+    }
+
+    public double getEmission(int i, int o) {
+        return emission(i, o);
+    }
+
+    /**
+     * log P(observations | model), see ForwardBackward
+     *
+     * @param observations
+     * @return
+     */
+    public double logLikelihood(ArrayList observations) {
+        return ForwardBackward.logLikelihood(this, encode(observations));
+    }
+
+    /**
+     * Same as above, stopping once the score is below bound
+     *
+     * @param observations
+     * @param bound
+     * @return the log likelihood, or a value below bound
+     */
+    public double logLikelihood(ArrayList observations, double bound) {
+        return ForwardBackward.logLikelihood(this, encode(observations), bound);
+    }
+}
@@ -0,0 +1,385 @@
+/*
+ * The Observations of a recording only depend on its audio content and on
+ * the version of the processing (normalisation, FindBeats, Segmentation),
+ * so they are computed once and kept on disk, one file per recording.
+ *
+ * A file is named after its record key (recordKey: the SHA-256 of the
+ * recording content, the heart rate given to FindBeats and the fingerprint
+ * of the codebook that named the Observations), the pipeline version and an
+ * optional variant. When the pipeline changes, PIPELINE_VERSION is
+ * incremented and the old files are simply never read again.
+ *
+ * The file is columnar, big-endian, every section on 4 bytes:
+ *
+ *   header   magic "HJFS", format version, pipeline version, number of
+ *            Observations, number of names, number of signature runs
+ *   names    offsets (number of names + 1) into a UTF-8 blob, padded to 4
+ *   columns  prefix name index, suffix name index, raw index, relative
+ *            shift, absolute shift, noise, event shift, many events,
+ *            signature length, signature offset (-1 when not kept), one
+ *            column after the other
+ *   arena    all the signature runs one after the other
+ *
+ * Reading maps the file and copies each column in bulk into an
+ * ObservationStore.
+ */
+package ML.Train;
+
+import ML.Classify.ObservationStore;
+import ML.Classify.PDefFeats;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ *
+ * Per recording cache of Observations on disk
+ */
+public class FeatureStore {
+
+    /**
+     * Increment when a change in the processing changes the Observations
+     */
+    public static final int PIPELINE_VERSION = 1;
+
+    static final int MAGIC = 0x484A4653;   // "HJFS"
+    static final int VERSION = 1;
+    static final int HEADER_INTS = 8;
+    static final int COLUMNS = 10;
+
+    private final File dir;
+    private final String variant;
+
+    /**
+     * @param dir the directory of the files, made if needed
+     */
+    public FeatureStore(File dir) {
+        this(dir, null);
+    }
+
+    /**
+     * @param dir the directory of the files, made if needed
+     * @param variant distinguishes Observations made from the same audio with
+     * different settings, may be null
+     */
+    public FeatureStore(File dir, String variant) {
+        this.dir = dir;
+        this.variant = variant;
+        dir.mkdirs();
+    }
+
+    /**
+     * The SHA-256 of a recording, in hexadecimal
+     *
+     * @param recording
+     * @return
+     * @throws IOException
+     */
+    public static String contentHash(File recording) throws IOException {
+        MessageDigest md = sha256();
+        byte[] b = new byte[1 << 16];
+        InputStream in = new FileInputStream(recording);
+        try {
+            int n;
+            while ((n = in.read(b)) > 0) {
+                md.update(b, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return hex(md.digest());
+    }
+
+    /**
+     * A short fingerprint of a codebook, to use as variant when the suffix of
+     * the Observations is a codebook symbol
+     *
+     * @param cb
+     * @return
+     * @throws IOException
+     */
+    public static String fingerprint(SignatureCodebook cb) throws IOException {
+        ByteArrayOutputStream bo = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bo);
+        cb.write(out);
+        out.flush();
+        return "cb" + hex(sha256().digest(bo.toByteArray())).substring(0, 16);
+    }
+
+    /**
+     * The key of the Observations of a recording: the same audio gives other
+     * beats with another heart rate, and other names with another codebook
+     *
+     * @param contentHash as given by contentHash()
+     * @param heartRate the one given to FindBeats, 0 when it is estimated
+     * @param codebook may be null, the suffix is then size % 20
+     * @return
+     * @throws IOException
+     */
+    public static String recordKey(String contentHash, int heartRate, SignatureCodebook codebook) throws IOException {
+        String key = contentHash + ".hr" + heartRate;
+        if (codebook != null) {
+            key += "." + fingerprint(codebook);
+        }
+        return key;
+    }
+
+    public File fileFor(String hash) {
+        String name = hash + ".p" + PIPELINE_VERSION;
+        if (variant != null && variant.length() > 0) {
+            name += "." + variant;
+        }
+        return new File(dir, name + ".hjf");
+    }
+
+    public boolean contains(String hash) {
+        return fileFor(hash).isFile();
+    }
+
+    /**
+     * Store the Observations of a recording, as made by Segmentation
+     *
+     * @param hash
+     * @param observations
+     * @throws IOException
+     */
+    public void put(String hash, ArrayList observations) throws IOException {
+        ObservationStore store = new ObservationStore(true, observations.size());
+        store.addAll(observations);
+        put(hash, store);
+    }
+
+    /**
+     * Store the Observations of a recording. The file is written aside, in a
+     * temporary file of its own so that two writers of the same recording do
+     * not mix their bytes, and moved atomically in place, so a reader never
+     * sees half a file (the last writer wins).
+     *
+     * @param hash
+     * @param store
+     * @throws IOException
+     */
+    public void put(String hash, ObservationStore store) throws IOException {
+        int n = store.size();
+        ArrayList<String> names = new ArrayList<String>();
+        HashMap<String, Integer> nameIndex = new HashMap<String, Integer>();
+        int[] prefix = new int[n];
+        int[] suffix = new int[n];
+        int runs = 0;
+        for (int idx = 0; idx < n; idx++) {
+            prefix[idx] = nameIndex(store.prefix(idx), names, nameIndex);
+            suffix[idx] = nameIndex(store.suffix(idx), names, nameIndex);
+            if (store.hasSign(idx)) {
+                runs += store.signLength(idx);
+            }
+        }
+
+        File file = fileFor(hash);
+        File tmp = File.createTempFile(file.getName() + ".", ".tmp", dir);
+        boolean moved = false;
+        try {
+            write(tmp, n, names, prefix, suffix, runs, store);
+            try {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            moved = true;
+        } finally {
+            if (!moved) {
+                tmp.delete();
+            }
+        }
+    }
+
+    private void write(File tmp, int n, ArrayList<String> names, int[] prefix, int[] suffix,
+            int runs, ObservationStore store) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(PIPELINE_VERSION);
+            out.writeInt(n);
+            out.writeInt(names.size());
+            out.writeInt(runs);
+            out.writeInt(0);    // reserved
+            out.writeInt(0);
+
+            byte[][] utf = new byte[names.size()][];
+            int off = 0;
+            out.writeInt(0);
+            for (int idx = 0; idx < utf.length; idx++) {
+                utf[idx] = names.get(idx).getBytes(StandardCharsets.UTF_8);
+                off += utf[idx].length;
+                out.writeInt(off);
+            }
+            for (int idx = 0; idx < utf.length; idx++) {
+                out.write(utf[idx]);
+            }
+            while ((off & 3) != 0) {
+                out.writeByte(0);
+                off++;
+            }
+
+            for (int idx = 0; idx < n; idx++) {
+                out.writeInt(prefix[idx]);
+            }
+            for (int idx = 0; idx < n; idx++) {
+                out.writeInt(suffix[idx]);
+            }
+            for (int idx = 0; idx < n; idx++) {
+                out.writeInt(store.rawIndex(idx));
+            }
+            for (int idx = 0; idx < n; idx++) {
+                out.writeFloat(store.shiftRel(idx));
+            }
+            for (int idx = 0; idx < n; idx++) {
+                out.writeFloat(store.shiftAbs(idx));
+            }
+            for (int idx = 0; idx < n; idx++) {
+                out.writeInt(store.noise(idx));
+            }
+            for (int idx = 0; idx < n; idx++) {
+                out.writeInt(store.shift(idx));
+            }
+            for (int idx = 0; idx < n; idx++) {
+                out.writeInt(store.manyEvents(idx));
+            }
+            for (int idx = 0; idx < n; idx++) {
+                out.writeInt(store.signLength(idx));
+            }
+            int at = 0;
+            for (int idx = 0; idx < n; idx++) {
+                if (store.hasSign(idx)) {
+                    out.writeInt(at);
+                    at += store.signLength(idx);
+                } else {
+                    out.writeInt(-1);
+                }
+            }
+            int[] arena = store.signArena();
+            for (int idx = 0; idx < n; idx++) {
+                if (store.hasSign(idx)) {
+                    int from = store.signOffset(idx);
+                    for (int r = 0; r < store.signLength(idx); r++) {
+                        out.writeInt(arena[from + r]);
+                    }
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Read back the Observations of a recording
+     *
+     * @param hash
+     * @param withSignatures false to keep only the signature lengths
+     * @param pdf predefined features given to all the Observations, may be null
+     * @return null if this recording was not stored with this pipeline version
+     * @throws IOException
+     */
+    public ObservationStore get(String hash, boolean withSignatures, PDefFeats pdf) throws IOException {
+        File file = fileFor(hash);
+        if (!file.isFile()) {
+            return null;
+        }
+        MappedByteBuffer buf;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel ch = raf.getChannel();
+            buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        } finally {
+            raf.close();
+        }
+        IntBuffer ints = buf.asIntBuffer();
+        if (ints.limit() < HEADER_INTS || ints.get(0) != MAGIC || ints.get(1) != VERSION
+                || ints.get(2) != PIPELINE_VERSION) {
+            return null;
+        }
+        int n = ints.get(3);
+        int nbNames = ints.get(4);
+        int runs = ints.get(5);
+
+        int pos = HEADER_INTS;
+        int[] offsets = new int[nbNames + 1];
+        ints.position(pos);
+        ints.get(offsets);
+        pos += nbNames + 1;
+        byte[] blob = new byte[offsets[nbNames]];
+        buf.position(pos * 4);
+        buf.get(blob);
+        pos += (blob.length + 3) / 4;
+        String[] names = new String[nbNames];
+        for (int idx = 0; idx < nbNames; idx++) {
+            names[idx] = new String(blob, offsets[idx], offsets[idx + 1] - offsets[idx], StandardCharsets.UTF_8);
+        }
+        if ((long) (pos + COLUMNS * (long) n + runs) * 4 > buf.capacity()) {
+            throw new IOException("Truncated feature file " + file);
+        }
+
+        int[][] cols = new int[COLUMNS][n];
+        ints.position(pos);
+        for (int c = 0; c < COLUMNS; c++) {
+            ints.get(cols[c]);
+        }
+        int[] arena = new int[withSignatures ? runs : 0];
+        ints.get(arena);
+
+        ObservationStore store = new ObservationStore(withSignatures, n);
+        for (int idx = 0; idx < n; idx++) {
+            int signOff = cols[9][idx];
+            store.add(names[cols[0][idx]], names[cols[1][idx]], cols[2][idx],
+                    Float.intBitsToFloat(cols[3][idx]), Float.intBitsToFloat(cols[4][idx]),
+                    cols[5][idx], cols[6][idx], cols[7][idx], pdf,
+                    withSignatures && signOff >= 0 ? arena : null, signOff, cols[8][idx]);
+        }
+        return store;
+    }
+
+    private static int nameIndex(String name, ArrayList<String> names, HashMap<String, Integer> index) {
+        Integer idx = index.get(name);
+        if (idx == null) {
+            idx = Integer.valueOf(names.size());
+            names.add(name);
+            index.put(name, idx);
+        }
+        return idx.intValue();
+    }
+
+    public static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            // every JVM has SHA-256
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    public static String hex(byte[] b) {
+        StringBuilder sb = new StringBuilder(b.length * 2);
+        for (int idx = 0; idx < b.length; idx++) {
+            sb.append(Character.forDigit((b[idx] >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b[idx] & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
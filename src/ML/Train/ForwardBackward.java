@@ -0,0 +1,164 @@
+/*
+ * The Forward-Backward algorithm, see README.txt
+ *
+ * alpha[t][i] is the probability of the observations 0..t and of being in
+ * state i at t, beta[t][i] the probability of the observations t+1..T-1 given
+ * state i at t. Both underflow quickly on long recordings, so each alpha row
+ * is scaled to sum to 1, and beta rows are scaled with the same factors
+ * (Rabiner's scaling). The log likelihood is then minus the sum of the logs
+ * of the scaling factors.
+ */
+package ML.Train;
+
+import java.util.Arrays;
+
+/**
+ *
+ * Scaled forward and backward passes over a DenseHMM, on flat arrays of
+ * T * N doubles.
+ */
+public class ForwardBackward {
+
+    private ForwardBackward() {
+    }
+
+    /**
+     * Forward pass.
+     *
+     * @param hmm
+     * @param obs symbols, -1 for unknown symbols
+     * @param alpha T * N, scaled alphas
+     * @param scale T, the inverse of the sum of each unscaled alpha row
+     * @return log P(obs | hmm)
+     */
+    public static double forward(DenseHMM hmm, int[] obs, double[] alpha, double[] scale) {
+        int n = hmm.n;
+        int len = obs.length;
+        double logLik = 0;
+        for (int t = 0; t < len; t++) {
+            int row = t * n;
+            double sum = 0;
+            for (int j = 0; j < n; j++) {
+                double v;
+                if (t == 0) {
+                    v = hmm.pi[j];
+                } else {
+                    v = 0;
+                    int prev = row - n;
+                    for (int i = 0; i < n; i++) {
+                        v += alpha[prev + i] * hmm.a[i * n + j];
+                    }
+                }
+                v *= hmm.emission(j, obs[t]);
+                alpha[row + j] = v;
+                sum += v;
+            }
+            if (sum <= 0) {
+                // impossible sequence for this model
+                scale[t] = 0;
+                return Double.NEGATIVE_INFINITY;
+            }
+            scale[t] = 1.0 / sum;
+            for (int j = 0; j < n; j++) {
+                alpha[row + j] *= scale[t];
+            }
+            logLik += Math.log(sum);
+        }
+        return logLik;
+    }
+
+    /**
+     * Backward pass, with the scaling factors of the forward pass.
+     *
+     * @param hmm
+     * @param obs
+     * @param scale
+     * @param beta T * N, scaled betas
+     */
+    public static void backward(DenseHMM hmm, int[] obs, double[] scale, double[] beta) {
+        int n = hmm.n;
+        int len = obs.length;
+        if (len == 0) {
+            return;
+        }
+        int last = (len - 1) * n;
+        for (int i = 0; i < n; i++) {
+            beta[last + i] = scale[len - 1];
+        }
+        for (int t = len - 2; t >= 0; t--) {
+            int row = t * n;
+            int next = row + n;
+            for (int i = 0; i < n; i++) {
+                double v = 0;
+                for (int j = 0; j < n; j++) {
+                    v += hmm.a[i * n + j] * hmm.emission(j, obs[t + 1]) * beta[next + j];
+                }
+                beta[row + i] = v * scale[t];
+            }
+        }
+    }
+
+    /**
+     * log P(obs | hmm) with only two rows of alphas
+     *
+     * @param hmm
+     * @param obs
+     * @return
+     */
+    public static double logLikelihood(DenseHMM hmm, int[] obs) {
+        return logLikelihood(hmm, obs, Double.NEGATIVE_INFINITY);
+    }
+
+    /**
+     * Same as above, stopping as soon as the score is below bound. Each step
+     * adds log P(obs[t] | obs[0..t-1]), which is at most 0, so the score only
+     * goes down and the recording cannot come back above bound.
+     *
+     * @param hmm
+     * @param obs
+     * @param bound for instance the score of the best model so far
+     * @return log P(obs | hmm), or a value below bound when it stopped early
+     */
+    public static double logLikelihood(DenseHMM hmm, int[] obs, double bound) {
+        int n = hmm.n;
+        double[] prev = new double[n];
+        double[] cur = new double[n];
+        double logLik = 0;
+        for (int t = 0; t < obs.length; t++) {
+            if (t == 0) {
+                System.arraycopy(hmm.pi, 0, cur, 0, n);
+            } else {
+                // row by row, the sums are made in the same order as a
+                // product by columns, and the inner loop is vectorized
+                Arrays.fill(cur, 0);
+                for (int i = 0; i < n; i++) {
+                    double p = prev[i];
+                    int row = i * n;
+                    for (int j = 0; j < n; j++) {
+                        cur[j] += p * hmm.a[row + j];
+                    }
+                }
+            }
+            double sum = 0;
+            for (int j = 0; j < n; j++) {
+                double v = cur[j] * hmm.emission(j, obs[t]);
+                cur[j] = v;
+                sum += v;
+            }
+            if (sum <= 0) {
+                return Double.NEGATIVE_INFINITY;
+            }
+            for (int j = 0; j < n; j++) {
+                cur[j] /= sum;
+            }
+            logLik += Math.log(sum);
+            if (logLik < bound) {
+                return logLik;
+            }
+            double[] tmp = prev;
+            prev = cur;
+            cur = tmp;
+        }
+        return logLik;
+    }
+}
@@ -17,7 +17,7 @@ public class HMM {
 
     public String mostFreqState;
 
-    public HashMap observationCounts;           // HashMap<String, HashMap<Observation, Integer>>
+    public HashMap observationCounts;           // HashMap<String, HashMap<ObservationKey, Integer>>
 
     // This is the most important item in this class
     // It gives the probability of transition from one state to the next
@@ -29,45 +29,225 @@ public class HMM {
     public HashMap transitionsProbs;           // HashMap<"CurrentState", HashMap<"NextState", probability>>
 
     public HashMap hidnStatesCounts;            // HashMap<String, Integer>
-    public HashMap stateForObservationCounts;   // HashMap<Observation, HashMap<String state, Integer>>
+    public HashMap stateForObservationCounts;   // HashMap<ObservationKey, HashMap<String state, Integer>>
 
     Integer mostFreqStateCount;
     int numTrainingBigrams;
 
     private float similarity;
 
+    // the maps above are the ones of these counts
+    HMMCounts counts;
+
+    // When not null, the smoothed probabilities are read from these rows
+    // instead of being computed from the counts, see IncrementalTrainer
+    HashMap priorRows;          // HashMap<String state1, ProbabilityRow of state2>
+    HashMap likelihoodRows;     // HashMap<String state, ProbabilityRow of ObservationKey>
+
+    // When not null, the smoothed probabilities are read from these tables,
+    // see compile(). They come before the rows above, and are made at the
+    // first call that reads a probability of a HMM without rows.
+    private volatile SmoothingTables tables;
+    // the same probabilities normalized in dense arrays, for logLikelihood()
+    private volatile DenseHMM dense;
+
     public ArrayList worksWell;
     ArrayList worksBadly;
 
     public HMM(ArrayList obb) {
+        this(new Observations(obb));
+    }
+
+    /**
+     * Same as above, with the Observations kept in a compact store
+     *
+     * @param store
+     */
+    public HMM(ObservationStore store) {
+        this(new Observations(store));
+    }
+
+    private HMM(Observations obb) {
+        this(obb, new HMMCounts());
+    }
+
+    /**
+     * A HMM made from counts, usually the merge of several shards, it has
+     * no Observations to train with
+     *
+     * @param cnts
+     */
+    HMM(HMMCounts cnts) {
+        this(new Observations(new ArrayList()), cnts);
+        numTrainingBigrams = (int) cnts.numTrainingBigrams;
+        mostFreqState = cnts.mostFrequentState();
+        if (mostFreqState != null) {
+            mostFreqStateCount = (Integer) hidnStatesCounts.get(mostFreqState);
+        }
+    }
+
+    private HMM(Observations obb, HMMCounts cnts) {
         obs = null;
         mostFreqState = null;
-        observationCounts = new HashMap();
+        counts = cnts;
+        observationCounts = cnts.observationCounts;
         numTrainingBigrams = 0;
-        transitionsProbs = new HashMap();
-        hidnStatesCounts = new HashMap();
-        stateForObservationCounts = new HashMap();
+        transitionsProbs = cnts.transitionsProbs;
+        hidnStatesCounts = cnts.hidnStatesCounts;
+        stateForObservationCounts = cnts.stateForObservationCounts;
         mostFreqStateCount = new Integer(0);
-        obs = new Observations(obb);
+        obs = obb;
 
         worksWell = new ArrayList();
         worksBadly = new ArrayList();
     }
 
+    /**
+     * The counts this HMM was trained with, they can be merged with the
+     * counts of other HMMs
+     *
+     * @return
+     */
+    public HMMCounts getCounts() {
+        return counts;
+    }
+
     public void train() {
+        // the counts change, the tables would be wrong
+        tables = null;
+        dense = null;
         String prevState = null;
-        Observation currentObservation = null;
         final Trainer trn = new Trainer();
         prevState = this.obs.currentStateTag();
         this.obs.gotoNextObservation();
         while (this.obs.hasNext()) {
             final String currentState = this.obs.currentStateTag();
-            currentObservation = this.obs.currentObservation();
+            // read from the columns of a store, no Observation is made
+            final ObservationKey currentKey = this.obs.currentKey();
             this.obs.incPtr();
-            prevState = trn.parseTrainer(this, prevState, currentState, currentObservation);
+            prevState = trn.parseTrainer(this, prevState, currentState, currentKey);
         }
     }
 
+    /**
+     * Freeze the vocabulary sizes and the denominator of each state, and
+     * compute all the smoothed probabilities in tables. calcLikelihood,
+     * calcPriorProbState and calcNode then read them from the tables instead
+     * of hashing into the count maps at each call.
+     *
+     * The tables take N * N + N * M floats, so train() does not make them:
+     * they are made at the first calcLikelihood, calcPriorProbState or
+     * calcNode, a HMM only read through SparseModel.of() never has them.
+     * A HMM with rows (IncrementalTrainer) is read from its rows and only
+     * gets tables from compile(). It must be called again when the counts
+     * are changed in another way than train() (HMMCounts.merge() on
+     * getCounts() ...).
+     */
+    public void compile() {
+        tables = new SmoothingTables(this);
+        dense = null;
+    }
+
+    /**
+     * log P(observations | this HMM) by the scaled forward algorithm, one
+     * pass over the Observations. Unlike the similarity of Viterbi, no test
+     * HMM is needed. An Observation this HMM never saw has the add-one
+     * default 1 / (count(state) + number of Observations), as in
+     * calcLikelihood, not probability 1, so a model that knows fewer of the
+     * Observations of the recording is not favoured and the scores of a
+     * recording against several models can be compared.
+     *
+     * @param observations ArrayList of Observations, as Segmentation gives
+     * them
+     * @return
+     */
+    public double logLikelihood(ArrayList observations) {
+        return getDenseModel().logLikelihood(observations);
+    }
+
+    /**
+     * Same as above, stopping as soon as the score is below bound, for
+     * instance the best score of the models already tried
+     *
+     * @param observations
+     * @param bound
+     * @return the log likelihood, or a value below bound
+     */
+    public double logLikelihood(ArrayList observations, double bound) {
+        return getDenseModel().logLikelihood(observations, bound);
+    }
+
+    /**
+     * The probabilities of this HMM normalized in dense arrays, made at the
+     * first call after the training
+     *
+     * @return
+     */
+    public DenseHMM getDenseModel() {
+        DenseHMM d = dense;
+        if (d == null) {
+            d = DenseHMM.fromCounts(this);
+            dense = d;
+        }
+        return d;
+    }
+
+    public boolean isCompiled() {
+        return tables != null;
+    }
+
+    /**
+     * Index of a state in the tables of compile()
+     *
+     * @param state
+     * @return -1 when the HMM does not know the state
+     */
+    public int stateIndex(String state) {
+        return compiled().stateIndex(state);
+    }
+
+    /**
+     * Same as above for the full name of an Observation, without hashing
+     * once the Observation knows its id
+     *
+     * @param word
+     * @return
+     */
+    public int stateIndex(Observation word) {
+        return compiled().stateOfId(word.getStateId());
+    }
+
+    /**
+     * Index of an Observation in the tables of compile()
+     *
+     * @param word
+     * @return -1 when it was never seen in training
+     */
+    public int symbolIndex(ObservationKey word) {
+        return compiled().symbolIndex(word);
+    }
+
+    private SmoothingTables compiled() {
+        SmoothingTables t = tables();
+        if (t == null) {
+            throw new IllegalStateException("HMM not compiled");
+        }
+        return t;
+    }
+
+    /**
+     * The tables, made at the first call when the HMM has no rows. Two
+     * threads may both make them, they are equal.
+     */
+    private SmoothingTables tables() {
+        SmoothingTables t = tables;
+        if (t == null && priorRows == null && likelihoodRows == null) {
+            t = new SmoothingTables(this);
+            tables = t;
+        }
+        return t;
+    }
+
     /**
      * The class initialization has read observation This method sends them in a
      * list
@@ -86,6 +266,24 @@ public class HMM {
      * Calculates probability of (State|Observation), that this state corresponds to that Observation
      */
     public float calcLikelihood(String state, Observation word) {
+        return calcLikelihood(state, word.getKey());
+    }
+
+    /*
+     * Same as above, for an Observation given by its key
+     */
+    public float calcLikelihood(String state, ObservationKey word) {
+        SmoothingTables t = tables();
+        if (t != null && state != null) {
+            return t.likelihood(t.stateIndex(state), t.symbolIndex(word));
+        }
+        if (likelihoodRows != null) {
+            ProbabilityRow row = (ProbabilityRow) likelihoodRows.get(state);
+            if (row != null) {
+                return row.get(word);
+            }
+            return 1.0F / stateForObservationCounts.keySet().size();
+        }
         int vocabSize = stateForObservationCounts.keySet().size();
         int deux;
         float trois;
@@ -95,16 +293,41 @@ public class HMM {
         return (float) un;
     }
 
+    /*
+     * Same as above with the indices of compile(), -1 for an unknown state or Observation
+     */
+    public float calcLikelihood(int state, int word) {
+        return compiled().likelihood(state, word);
+    }
+
     /*
      * Calculates probability of (State1|State2), of transition from state1 to state2
      */
     public float calcPriorProbState(String state1, String state2) {
+        SmoothingTables t = tables();
+        if (t != null && state1 != null && state2 != null) {
+            return t.prior(t.stateIndex(state1), t.stateIndex(state2));
+        }
+        if (priorRows != null) {
+            ProbabilityRow row = (ProbabilityRow) priorRows.get(state1);
+            if (row != null) {
+                return row.get(state2);
+            }
+            return 1.0F / hidnStatesCounts.keySet().size();
+        }
         int vocabSize = hidnStatesCounts.keySet().size();
         float deux = (float) (HMMutilities.countsStates(transitionsProbs, state1, state2) + 1);
         float trois = (float) (HMMutilities.countStates(hidnStatesCounts, state1) + vocabSize);
         return deux / trois;
     }
 
+    /*
+     * Same as above with the indices of compile(), -1 for an unknown state
+     */
+    public float calcPriorProbState(int state1, int state2) {
+        return compiled().prior(state1, state2);
+    }
+
     /* 
      * This method computes the probability that State is the appropriate state for this Observation,
      * given the probabilities before it (found in prevMap) 
@@ -115,6 +338,10 @@ public class HMM {
      *                     
      */
     public Node calcNode(Observation word, String state, HashMap prevMap) {
+        SmoothingTables t = tables();
+        if (t != null && state != null) {
+            return calcNode(t, word, state, prevMap);
+        }
         Node n = new Node(word, state);
         float maxProb = 0.0F;
         Iterator iterator = prevMap.keySet().iterator();
@@ -135,6 +362,62 @@ public class HMM {
         return n;
     }
 
+    /*
+     * Same as above with the tables of compile(): the index of a state is
+     * kept in its Node, the previous Nodes are not looked up again
+     */
+    private Node calcNode(SmoothingTables t, Observation word, String state, HashMap prevMap) {
+        Node n = new Node(word, state);
+        n.stateIndex = t.stateIndex(state);
+        n.indexedBy = t;
+        float maxProb = 0.0F;
+        Iterator iterator = prevMap.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry e = (Map.Entry) iterator.next();
+            Node prevNode = (Node) e.getValue();
+            String prevTag = (String) e.getKey();
+            float prevProb;
+            if (prevTag == null) {
+                // the start of a sequence, only in the maps
+                prevProb = prevNode.probability * calcPriorProbState(prevTag, state);
+            } else {
+                if (prevNode.indexedBy != t || !prevTag.equals(prevNode.tag)) {
+                    prevNode.stateIndex = t.stateIndex(prevTag);
+                    prevNode.indexedBy = t;
+                }
+                prevProb = prevNode.probability * t.prior(prevNode.stateIndex, n.stateIndex);
+            }
+            if (prevProb >= maxProb) {
+                maxProb = prevProb;
+                n.parent = prevNode;
+            }
+        }
+        n.probability = maxProb * t.likelihood(n.stateIndex, t.symbolIndex(word.getKey()));
+        return n;
+    }
+
+    /**
+     * The transitions row of state1, made from the current counts
+     *
+     * @param state1
+     * @return
+     */
+    ProbabilityRow makePriorRow(String state1) {
+        return new ProbabilityRow((HashMap) transitionsProbs.get(state1),
+                HMMutilities.countStates(hidnStatesCounts, state1), hidnStatesCounts.keySet().size());
+    }
+
+    /**
+     * The Observations row of state, made from the current counts
+     *
+     * @param state
+     * @return
+     */
+    ProbabilityRow makeLikelihoodRow(String state) {
+        return new ProbabilityRow((HashMap) observationCounts.get(state),
+                HMMutilities.countStates(hidnStatesCounts, state), stateForObservationCounts.keySet().size());
+    }
+
     public void setSimilarity(final float simil) {
         this.similarity = simil;
     }
@@ -0,0 +1,414 @@
+/*
+ * The counts a HMM is trained with: how many times each state is seen, each
+ * transition between two states, each Observation for each state and each
+ * state for each Observation. All the probabilities of HMM are computed from
+ * them.
+ *
+ * Counts are additive, so a corpus can be split in shards, each shard counted
+ * on its own (another thread, another JVM on another box) and the shards
+ * summed with merge(). Merging is associative and does not depend on the
+ * order, so the result is the same however the corpus was split.
+ */
+package ML.Train;
+
+import ML.Classify.Observation;
+import ML.Classify.ObservationKey;
+import ML.Classify.ObservationStore;
+import ML.Classify.SymbolTable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ *
+ * Mergeable sufficient statistics of a HMM
+ */
+public class HMMCounts {
+
+    private static final int MAGIC = 0x484D4D43;   // "HMMC"
+    private static final int VERSION = 1;
+
+    // recordings per fork/join task
+    private static final int SHARD = 4;
+
+    // The maps have the same shape as the public maps of HMM, which are these ones
+    HashMap hidnStatesCounts;            // HashMap<String, Integer>
+    HashMap transitionsProbs;            // HashMap<"CurrentState", HashMap<"NextState", Integer>>
+    HashMap observationCounts;           // HashMap<String, HashMap<ObservationKey, Integer>>
+    HashMap stateForObservationCounts;   // HashMap<ObservationKey, HashMap<String state, Integer>>
+    long numTrainingBigrams;
+
+    public HMMCounts() {
+        hidnStatesCounts = new HashMap();
+        transitionsProbs = new HashMap();
+        observationCounts = new HashMap();
+        stateForObservationCounts = new HashMap();
+        numTrainingBigrams = 0;
+    }
+
+    /**
+     * Count one step of a sequence: the transition from prevState to
+     * currentState, where currentObservation is observed
+     *
+     * @param prevState
+     * @param currentState
+     * @param currentObservation
+     */
+    public void add(String prevState, String currentState, ObservationKey currentObservation) {
+        add(prevState, currentState, currentObservation, 1);
+    }
+
+    /**
+     * Same as above, n times (n may be negative to remove counts)
+     */
+    void add(String prevState, String currentState, ObservationKey currentObservation, int n) {
+        addCount(hidnStatesCounts, currentState, n);
+        addCount(subMap(observationCounts, currentState), currentObservation, n);
+        addCount(subMap(transitionsProbs, prevState), currentState, n);
+        addCount(subMap(stateForObservationCounts, currentObservation), currentState, n);
+        numTrainingBigrams += n;
+    }
+
+    /**
+     * Count a recording the way HMM.train() does: the first Observation only
+     * gives the initial state, each next one is a step
+     *
+     * @param recording ArrayList of Observations
+     */
+    public void count(ArrayList recording) {
+        if (recording.isEmpty()) {
+            return;
+        }
+        String prevState = ((Observation) recording.get(0)).getFullName();
+        for (int idx = 1; idx < recording.size(); idx++) {
+            Observation obs = (Observation) recording.get(idx);
+            String currentState = obs.getFullName();
+            add(prevState, currentState, obs.getKey());
+            prevState = currentState;
+        }
+    }
+
+    /**
+     * Same as above, for a recording kept in a compact store
+     *
+     * @param recording
+     */
+    public void count(ObservationStore recording) {
+        if (recording.size() == 0) {
+            return;
+        }
+        String prevState = recording.stateName(0);
+        for (int idx = 1; idx < recording.size(); idx++) {
+            String currentState = recording.stateName(idx);
+            add(prevState, currentState, recording.key(idx));
+            prevState = currentState;
+        }
+    }
+
+    /**
+     * Add the counts of another shard to this one, other is not modified
+     *
+     * @param other
+     * @return this
+     */
+    public HMMCounts merge(HMMCounts other) {
+        mergeCounts(hidnStatesCounts, other.hidnStatesCounts, 1);
+        mergeNested(transitionsProbs, other.transitionsProbs, 1);
+        mergeNested(observationCounts, other.observationCounts, 1);
+        mergeNested(stateForObservationCounts, other.stateForObservationCounts, 1);
+        numTrainingBigrams += other.numTrainingBigrams;
+        return this;
+    }
+
+    /**
+     * Remove the counts of another shard from this one, for instance the
+     * counts of recordings whose labels were retracted. other must have been
+     * merged in this one before.
+     *
+     * @param other
+     * @return this
+     */
+    public HMMCounts subtract(HMMCounts other) {
+        mergeCounts(hidnStatesCounts, other.hidnStatesCounts, -1);
+        mergeNested(transitionsProbs, other.transitionsProbs, -1);
+        mergeNested(observationCounts, other.observationCounts, -1);
+        mergeNested(stateForObservationCounts, other.stateForObservationCounts, -1);
+        numTrainingBigrams -= other.numTrainingBigrams;
+        return this;
+    }
+
+    /**
+     * A deep copy, to merge into without touching this one
+     *
+     * @return
+     */
+    public HMMCounts copy() {
+        return new HMMCounts().merge(this);
+    }
+
+    /**
+     * Count recordings in parallel, one shard per fork/join task, and sum the
+     * shards. Each recording is a sequence of its own, there is no transition
+     * from the end of one recording to the start of the next.
+     *
+     * @param recordings one ArrayList of Observations per recording
+     * @param pool
+     * @return
+     */
+    public static HMMCounts countAll(List<ArrayList> recordings, ForkJoinPool pool) {
+        return pool.invoke(new CountTask(recordings, 0, recordings.size()));
+    }
+
+    /**
+     * The state seen the most, ties are broken by name so that the result
+     * does not depend on the order of counting
+     *
+     * @return
+     */
+    public String mostFrequentState() {
+        String best = null;
+        int bestCount = -1;
+        Iterator it = hidnStatesCounts.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry e = (Map.Entry) it.next();
+            String state = (String) e.getKey();
+            int cnt = ((Integer) e.getValue()).intValue();
+            if ((cnt > bestCount) || ((cnt == bestCount) && (state.compareTo(best) < 0))) {
+                best = state;
+                bestCount = cnt;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * A HMM, with no Observations, whose counts are these ones (not copied)
+     *
+     * @return
+     */
+    public HMM toHMM() {
+        return new HMM(this);
+    }
+
+    public long getNumTrainingBigrams() {
+        return numTrainingBigrams;
+    }
+
+    /**
+     * Write the counts, so that a shard can be sent to another process. The
+     * ObservationKeys are written with their names, as symbol ids are only
+     * valid in one JVM.
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(numTrainingBigrams);
+        writeCounts(out, hidnStatesCounts);
+        out.writeInt(transitionsProbs.size());
+        Iterator it = transitionsProbs.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry e = (Map.Entry) it.next();
+            writeState(out, (String) e.getKey());
+            writeCounts(out, (HashMap) e.getValue());
+        }
+        out.writeInt(observationCounts.size());
+        it = observationCounts.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry e = (Map.Entry) it.next();
+            writeState(out, (String) e.getKey());
+            HashMap sub = (HashMap) e.getValue();
+            out.writeInt(sub.size());
+            Iterator it2 = sub.entrySet().iterator();
+            while (it2.hasNext()) {
+                Map.Entry e2 = (Map.Entry) it2.next();
+                writeKey(out, (ObservationKey) e2.getKey());
+                out.writeInt(((Integer) e2.getValue()).intValue());
+            }
+        }
+        out.writeInt(stateForObservationCounts.size());
+        it = stateForObservationCounts.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry e = (Map.Entry) it.next();
+            writeKey(out, (ObservationKey) e.getKey());
+            writeCounts(out, (HashMap) e.getValue());
+        }
+    }
+
+    public static HMMCounts readFrom(DataInput in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a HMM counts file");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unknown HMM counts version " + version);
+        }
+        HMMCounts c = new HMMCounts();
+        c.numTrainingBigrams = in.readLong();
+        readCounts(in, c.hidnStatesCounts);
+        int rows = in.readInt();
+        for (int r = 0; r < rows; r++) {
+            String state = readState(in);
+            readCounts(in, subMap(c.transitionsProbs, state));
+        }
+        rows = in.readInt();
+        for (int r = 0; r < rows; r++) {
+            HashMap sub = subMap(c.observationCounts, readState(in));
+            int size = in.readInt();
+            for (int idx = 0; idx < size; idx++) {
+                ObservationKey key = readKey(in);
+                sub.put(key, Integer.valueOf(in.readInt()));
+            }
+        }
+        rows = in.readInt();
+        for (int r = 0; r < rows; r++) {
+            ObservationKey key = readKey(in);
+            readCounts(in, subMap(c.stateForObservationCounts, key));
+        }
+        return c;
+    }
+
+    public void save(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            writeTo(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    public static HMMCounts load(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            return readFrom(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    static HashMap subMap(HashMap map, Object key) {
+        HashMap sub = (HashMap) map.get(key);
+        if (sub == null) {
+            sub = new HashMap();
+            map.put(key, sub);
+        }
+        return sub;
+    }
+
+    /**
+     * Add n to the count of key, the entry is removed when it falls to 0
+     */
+    static void addCount(HashMap map, Object key, int n) {
+        Integer old = (Integer) map.get(key);
+        int v = (old == null ? 0 : old.intValue()) + n;
+        if (v <= 0) {
+            map.remove(key);
+        } else {
+            map.put(key, Integer.valueOf(v));
+        }
+    }
+
+    static void mergeCounts(HashMap into, HashMap from, int sign) {
+        Iterator it = from.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry e = (Map.Entry) it.next();
+            addCount(into, e.getKey(), sign * ((Integer) e.getValue()).intValue());
+        }
+    }
+
+    static void mergeNested(HashMap into, HashMap from, int sign) {
+        Iterator it = from.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry e = (Map.Entry) it.next();
+            HashMap sub = subMap(into, e.getKey());
+            mergeCounts(sub, (HashMap) e.getValue(), sign);
+            if (sub.isEmpty()) {
+                into.remove(e.getKey());
+            }
+        }
+    }
+
+    private static void writeCounts(DataOutput out, HashMap counts) throws IOException {
+        out.writeInt(counts.size());
+        Iterator it = counts.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry e = (Map.Entry) it.next();
+            writeState(out, (String) e.getKey());
+            out.writeInt(((Integer) e.getValue()).intValue());
+        }
+    }
+
+    private static void readCounts(DataInput in, HashMap counts) throws IOException {
+        int size = in.readInt();
+        for (int idx = 0; idx < size; idx++) {
+            String state = readState(in);
+            counts.put(state, Integer.valueOf(in.readInt()));
+        }
+    }
+
+    // a state may be null, for the first step of a HMM trained by HMM.train()
+    private static void writeState(DataOutput out, String state) throws IOException {
+        out.writeBoolean(state != null);
+        if (state != null) {
+            out.writeUTF(state);
+        }
+    }
+
+    private static String readState(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeKey(DataOutput out, ObservationKey key) throws IOException {
+        out.writeUTF(key.getName());
+        out.writeInt(key.getCode());
+    }
+
+    private static ObservationKey readKey(DataInput in) throws IOException {
+        String name = in.readUTF();
+        return new ObservationKey(SymbolTable.states().intern(name), in.readInt());
+    }
+
+    private static class CountTask extends RecursiveTask<HMMCounts> {
+
+        private final List<ArrayList> recordings;
+        private final int from, to;
+
+        CountTask(List<ArrayList> recordings, int from, int to) {
+            this.recordings = recordings;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected HMMCounts compute() {
+            if (to - from > SHARD) {
+                int mid = (from + to) >>> 1;
+                CountTask left = new CountTask(recordings, from, mid);
+                left.fork();
+                HMMCounts right = new CountTask(recordings, mid, to).compute();
+                return left.join().merge(right);
+            }
+            HMMCounts shard = new HMMCounts();
+            for (int idx = from; idx < to; idx++) {
+                shard.count(recordings.get(idx));
+            }
+            return shard;
+        }
+    }
+}
@@ -2,7 +2,7 @@
 package ML.Train;
 
 import ML.Classify.Node;
-import ML.Classify.Observation;
+import ML.Classify.ObservationKey;
 import java.io.PrintStream;
 import java.util.*;
 
@@ -22,12 +22,12 @@ public class HMMutilities extends HMM
         return map.containsKey(key) ? ((Integer)map.get(key)).intValue() : 0;
     }
 
-    private static int countObsrv(HashMap map, Observation key)
+    private static int countObsrv(HashMap map, ObservationKey key)
     {
         return map.containsKey(key) ? ((Integer)map.get(key)).intValue() : 0;
     }
 
-    static int countsObsrv(HashMap map, String key1, Observation key2)
+    static int countsObsrv(HashMap map, String key1, ObservationKey key2)
     {
         return map.containsKey(key1) ? countObsrv((HashMap)map.get(key1), key2) : 0;
     }
@@ -0,0 +1,180 @@
+/*
+ * When clinicians label a new recording, the model does not need to be
+ * trained again over all the recordings: the counts of a HMM are additive,
+ * so the counts of the new recording are added to the persisted counts (and
+ * the counts of a retracted recording are subtracted).
+ *
+ * Then only the probability rows of the states whose counts changed are
+ * computed again, the other rows are shared with the previous model. If the
+ * number of states or of Observations changed, the smoothing of every row
+ * changes and all the rows are computed again.
+ *
+ * Each update makes a new HMM, the previous one is never modified, and the
+ * new one is published atomically: a classification sees either the old or
+ * the new model, never a mix.
+ */
+package ML.Train;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ *
+ * Keeps a trained model up to date with newly labelled recordings
+ */
+public class IncrementalTrainer {
+
+    private final AtomicReference<HMM> current;
+    private final ForkJoinPool pool;
+    // when not null, each new model is also published there
+    private ModelRegistry registry = null;
+    private String registryName = null;
+
+    public IncrementalTrainer(HMMCounts base) {
+        this(base, ForkJoinPool.commonPool());
+    }
+
+    public IncrementalTrainer(HMMCounts base, ForkJoinPool pool) {
+        this.pool = pool;
+        HMM hmm = base.copy().toHMM();
+        hmm.priorRows = new HashMap();
+        hmm.likelihoodRows = new HashMap();
+        computeRows(hmm, allStates(hmm), hmm.priorRows, hmm.likelihoodRows);
+        current = new AtomicReference<HMM>(hmm);
+    }
+
+    /**
+     * Start from counts persisted with HMMCounts.save()
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static IncrementalTrainer load(File file) throws IOException {
+        return new IncrementalTrainer(HMMCounts.load(file));
+    }
+
+    /**
+     * The model to classify with, it is never modified afterwards
+     *
+     * @return
+     */
+    public HMM current() {
+        return current.get();
+    }
+
+    /**
+     * Publish the current model and each next one in a registry, for the
+     * classifications served from it
+     *
+     * @param reg
+     * @param name
+     * @return the snapshot of the current model
+     */
+    public synchronized ModelSnapshot publishTo(ModelRegistry reg, String name) {
+        registry = reg;
+        registryName = name;
+        // the models made here are never modified, no need to copy them
+        return reg.publishShared(name, current.get());
+    }
+
+    /**
+     * Fold in newly labelled recordings, and optionally remove retracted ones
+     * (that must have been added before)
+     *
+     * @param added one ArrayList of Observations per recording, may be null
+     * @param retracted same, may be null
+     * @return the new model, it is already published
+     */
+    public synchronized HMM update(List<ArrayList> added, List<ArrayList> retracted) {
+        HMMCounts plus = added == null ? new HMMCounts() : HMMCounts.countAll(added, pool);
+        HMMCounts minus = retracted == null ? new HMMCounts() : HMMCounts.countAll(retracted, pool);
+        return update(plus, minus);
+    }
+
+    /**
+     * Same as above with counts, for instance shards counted elsewhere
+     *
+     * @param plus
+     * @param minus
+     * @return
+     */
+    public synchronized HMM update(HMMCounts plus, HMMCounts minus) {
+        HMM old = current.get();
+        HMM hmm = old.counts.copy().merge(plus).subtract(minus).toHMM();
+
+        // rows of the previous model are shared, unless their counts changed
+        HashMap priorRows = new HashMap(old.priorRows);
+        HashMap likelihoodRows = new HashMap(old.likelihoodRows);
+        HashSet dirty;
+        boolean statesChanged = hmm.hidnStatesCounts.size() != old.hidnStatesCounts.size();
+        boolean obsChanged = hmm.stateForObservationCounts.size() != old.stateForObservationCounts.size();
+        if (statesChanged || obsChanged) {
+            // the smoothing of every row changed
+            dirty = allStates(hmm);
+            dirty.addAll(old.hidnStatesCounts.keySet());
+            priorRows.clear();
+            likelihoodRows.clear();
+        } else {
+            dirty = new HashSet();
+            addKeys(dirty, plus);
+            addKeys(dirty, minus);
+        }
+        computeRows(hmm, dirty, priorRows, likelihoodRows);
+        hmm.priorRows = priorRows;
+        hmm.likelihoodRows = likelihoodRows;
+
+        current.set(hmm);
+        if (registry != null) {
+            registry.publishShared(registryName, hmm);
+        }
+        return hmm;
+    }
+
+    /**
+     * Persist the counts of the current model, for the next load()
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void save(File file) throws IOException {
+        current.get().counts.save(file);
+    }
+
+    private static void computeRows(HMM hmm, HashSet states, HashMap priorRows, HashMap likelihoodRows) {
+        Iterator it = states.iterator();
+        while (it.hasNext()) {
+            String state = (String) it.next();
+            if (!hmm.hidnStatesCounts.containsKey(state) && !hmm.transitionsProbs.containsKey(state)) {
+                // this state is gone
+                priorRows.remove(state);
+                likelihoodRows.remove(state);
+                continue;
+            }
+            priorRows.put(state, hmm.makePriorRow(state));
+            likelihoodRows.put(state, hmm.makeLikelihoodRow(state));
+        }
+    }
+
+    private static HashSet allStates(HMM hmm) {
+        HashSet states = new HashSet(hmm.hidnStatesCounts.keySet());
+        states.addAll(hmm.transitionsProbs.keySet());
+        return states;
+    }
+
+    /**
+     * The states whose rows depend on these counts
+     */
+    private static void addKeys(HashSet dirty, HMMCounts delta) {
+        dirty.addAll(delta.hidnStatesCounts.keySet());
+        dirty.addAll(delta.transitionsProbs.keySet());
+        dirty.addAll(delta.observationCounts.keySet());
+    }
+}
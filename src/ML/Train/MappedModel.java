@@ -0,0 +1,369 @@
+package ML.Train;
+
+import ML.Classify.ObservationKey;
+import ML.Classify.SymbolTable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.HashMap;
+
+/**
+ * A model file (see ModelFile) read in place from a memory mapped buffer.
+ *
+ * Values are read from the buffer when asked, loading only checks the
+ * header and computes where each section starts, and decodes the names of
+ * the states and of the Observations, once. The model is never modified
+ * afterwards, it can be read by several threads without lock.
+ *
+ */
+public class MappedModel implements SparseRows {
+
+    private final ByteBuffer buf;
+    private final IntBuffer ints;
+
+    private final int nbStates;
+    private final int nbSymbols;
+    private final int nbNames;
+    private final int transNnz;
+    private final int emisNnz;
+    private final int vocabStates;
+    private final int vocabObs;
+    private final int mostFreq;
+    private final long numTrainingBigrams;
+    private final long created;
+    private final String description;
+
+    // section starts, in ints
+    private final int nameOffsets;
+    private final int nameBlob;        // in bytes
+    private final int stateCounts;
+    private final int symbols;
+    private final int transRows;
+    private final int transEntries;
+    private final int transDefaults;
+    private final int emisRows;
+    private final int emisEntries;
+    private final int emisDefaults;
+
+    private final String[] names;
+    // name => index in names, the states come first
+    private final HashMap<String, Integer> nameIndex;
+
+    MappedModel(ByteBuffer buffer) throws IOException {
+        buf = buffer;
+        if (buf.capacity() < ModelFile.HEADER_BYTES || buf.getInt(0) != ModelFile.MAGIC) {
+            throw new IOException("Not a HjerteLib model file");
+        }
+        int version = buf.getInt(4);
+        if (version != ModelFile.VERSION) {
+            throw new IOException("Unknown model file version " + version);
+        }
+        ints = buf.asIntBuffer();
+        nbStates = ints.get(2);
+        nbSymbols = ints.get(3);
+        nbNames = ints.get(4);
+        transNnz = ints.get(5);
+        emisNnz = ints.get(6);
+        vocabStates = ints.get(7);
+        vocabObs = ints.get(8);
+        mostFreq = ints.get(9);
+        int descLength = ints.get(10);
+        numTrainingBigrams = buf.getLong(48);
+        created = buf.getLong(56);
+
+        int pos = ModelFile.HEADER_BYTES / 4;
+        nameOffsets = pos;
+        pos += nbNames + 1;
+        nameBlob = pos * 4;
+        pos += ModelFile.padded(ints.get(nameOffsets + nbNames)) / 4;
+        stateCounts = pos;
+        pos += nbStates;
+        symbols = pos;
+        pos += 2 * nbSymbols;
+        transRows = pos;
+        pos += nbStates + 1;
+        transEntries = pos;
+        pos += ModelFile.ENTRY_INTS * transNnz;
+        transDefaults = pos;
+        pos += nbStates;
+        emisRows = pos;
+        pos += nbStates + 1;
+        emisEntries = pos;
+        pos += ModelFile.ENTRY_INTS * emisNnz;
+        emisDefaults = pos;
+        pos += nbStates;
+        if ((long) pos * 4 + descLength > buf.capacity()) {
+            throw new IOException("Truncated model file");
+        }
+        description = ModelFile.decode(buf, pos * 4, descLength);
+
+        names = new String[nbNames];
+        nameIndex = new HashMap<String, Integer>(2 * nbNames);
+        for (int n = 0; n < nbNames; n++) {
+            int from = ints.get(nameOffsets + n);
+            int to = ints.get(nameOffsets + n + 1);
+            names[n] = ModelFile.decode(buf, nameBlob + from, to - from);
+            // the first index of a name, as the scan it replaces
+            if (!nameIndex.containsKey(names[n])) {
+                nameIndex.put(names[n], Integer.valueOf(n));
+            }
+        }
+    }
+
+    public int getNbStates() {
+        return nbStates;
+    }
+
+    public int getNbSymbols() {
+        return nbSymbols;
+    }
+
+    /**
+     * Number of states used for the smoothing of the transitions
+     *
+     * @return
+     */
+    public int getVocabStates() {
+        return vocabStates;
+    }
+
+    /**
+     * Number of Observations used for the smoothing of the emissions
+     *
+     * @return
+     */
+    public int getVocabObs() {
+        return vocabObs;
+    }
+
+    public long getNumTrainingBigrams() {
+        return numTrainingBigrams;
+    }
+
+    /**
+     * When the file was written, in milliseconds since the epoch
+     *
+     * @return
+     */
+    public long getCreated() {
+        return created;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public String getMostFreqState() {
+        return mostFreq < 0 ? null : name(mostFreq);
+    }
+
+    public String stateName(int i) {
+        return name(i);
+    }
+
+    public int stateCount(int i) {
+        return ints.get(stateCounts + i);
+    }
+
+    /**
+     * The index of a state, -1 if unknown
+     *
+     * @param state
+     * @return
+     */
+    public int stateIndex(String state) {
+        int idx = nameIndex(state);
+        return idx < nbStates ? idx : -1;
+    }
+
+    /**
+     * The index of a symbol, -1 if it was never seen in training
+     *
+     * @param key
+     * @return
+     */
+    public int symbolIndex(ObservationKey key) {
+        int name = nameIndex(key.getName());
+        if (name < 0) {
+            return -1;
+        }
+        long k = ModelFile.symbolSortKey(name, key.getCode());
+        int lo = 0, hi = nbSymbols - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long v = ModelFile.symbolSortKey(ints.get(symbols + 2 * mid), ints.get(symbols + 2 * mid + 1));
+            if (v < k) {
+                lo = mid + 1;
+            } else if (v > k) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    public ObservationKey symbol(int m) {
+        return new ObservationKey(SymbolTable.states().intern(name(ints.get(symbols + 2 * m))),
+                ints.get(symbols + 2 * m + 1));
+    }
+
+    /**
+     * log P(state j | state i), smoothed
+     *
+     * @param i
+     * @param j
+     * @return
+     */
+    public float transitionLogProb(int i, int j) {
+        int e = find(transRows, transEntries, i, j);
+        return e < 0 ? Float.intBitsToFloat(ints.get(transDefaults + i)) : Float.intBitsToFloat(ints.get(e + 2));
+    }
+
+    /**
+     * log P(symbol m | state i), smoothed, m may be -1 for an unknown symbol
+     *
+     * @param i
+     * @param m
+     * @return
+     */
+    public float emissionLogProb(int i, int m) {
+        int e = m < 0 ? -1 : find(emisRows, emisEntries, i, m);
+        return e < 0 ? Float.intBitsToFloat(ints.get(emisDefaults + i)) : Float.intBitsToFloat(ints.get(e + 2));
+    }
+
+    /**
+     * Number of counted successors of state i, they are successor(i, 0..)
+     *
+     * @param i
+     * @return
+     */
+    public int successorCount(int i) {
+        return ints.get(transRows + i + 1) - ints.get(transRows + i);
+    }
+
+    public int successor(int i, int k) {
+        return ints.get(transEntries + ModelFile.ENTRY_INTS * (ints.get(transRows + i) + k));
+    }
+
+    public float successorLogProb(int i, int k) {
+        return Float.intBitsToFloat(ints.get(transEntries + ModelFile.ENTRY_INTS * (ints.get(transRows + i) + k) + 2));
+    }
+
+    public boolean hasTransition(int i, int j) {
+        return find(transRows, transEntries, i, j) >= 0;
+    }
+
+    public float transitionDefaultLogProb(int i) {
+        return Float.intBitsToFloat(ints.get(transDefaults + i));
+    }
+
+    public float emissionDefaultLogProb(int i) {
+        return Float.intBitsToFloat(ints.get(emisDefaults + i));
+    }
+
+    /**
+     * Rebuild the counts of the model, for instance to update it with an
+     * IncrementalTrainer. It makes objects, unlike the other methods.
+     *
+     * @return
+     */
+    public HMMCounts toCounts() {
+        HMMCounts c = new HMMCounts();
+        c.numTrainingBigrams = numTrainingBigrams;
+        ObservationKey[] keys = new ObservationKey[nbSymbols];
+        for (int m = 0; m < nbSymbols; m++) {
+            keys[m] = symbol(m);
+        }
+        for (int i = 0; i < nbStates; i++) {
+            String state = name(i);
+            if (stateCount(i) > 0) {
+                c.hidnStatesCounts.put(state, Integer.valueOf(stateCount(i)));
+            }
+            for (int e = ints.get(transRows + i); e < ints.get(transRows + i + 1); e++) {
+                int base = transEntries + ModelFile.ENTRY_INTS * e;
+                HMMCounts.subMap(c.transitionsProbs, state).put(name(ints.get(base)), Integer.valueOf(ints.get(base + 1)));
+            }
+            for (int e = ints.get(emisRows + i); e < ints.get(emisRows + i + 1); e++) {
+                int base = emisEntries + ModelFile.ENTRY_INTS * e;
+                Integer cnt = Integer.valueOf(ints.get(base + 1));
+                ObservationKey key = keys[ints.get(base)];
+                HMMCounts.subMap(c.observationCounts, state).put(key, cnt);
+                // stateForObservationCounts is the transpose of observationCounts
+                HMMCounts.subMap(c.stateForObservationCounts, key).put(state, cnt);
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Copy the rows out of the mapped file, into a SparseModel that does not
+     * depend on the file anymore
+     *
+     * @return
+     */
+    public SparseModel toSparse() {
+        String[] st = new String[nbStates];
+        int[] counts = new int[nbStates];
+        for (int i = 0; i < nbStates; i++) {
+            st[i] = name(i);
+            counts[i] = stateCount(i);
+        }
+        ObservationKey[] keys = new ObservationKey[nbSymbols];
+        for (int m = 0; m < nbSymbols; m++) {
+            keys[m] = symbol(m);
+        }
+        SparseModel.Csr trans = copyCsr(transRows, transEntries, transDefaults, transNnz);
+        SparseModel.Csr emis = copyCsr(emisRows, emisEntries, emisDefaults, emisNnz);
+        return new SparseModel(st, counts, keys, trans, emis, numTrainingBigrams);
+    }
+
+    private SparseModel.Csr copyCsr(int rows, int entries, int defaults, int nnz) {
+        SparseModel.Csr c = new SparseModel.Csr(nbStates, nnz);
+        for (int i = 0; i <= nbStates; i++) {
+            c.rowStart[i] = ints.get(rows + i);
+        }
+        for (int e = 0; e < nnz; e++) {
+            int base = entries + ModelFile.ENTRY_INTS * e;
+            c.column[e] = ints.get(base);
+            c.count[e] = ints.get(base + 1);
+            c.logProb[e] = Float.intBitsToFloat(ints.get(base + 2));
+        }
+        for (int i = 0; i < nbStates; i++) {
+            c.defaultLogProb[i] = Float.intBitsToFloat(ints.get(defaults + i));
+        }
+        return c;
+    }
+
+    /**
+     * Binary search of column col in row i, the int index of the entry or -1
+     */
+    private int find(int rows, int entries, int i, int col) {
+        int lo = ints.get(rows + i);
+        int hi = ints.get(rows + i + 1) - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = ints.get(entries + ModelFile.ENTRY_INTS * mid);
+            if (c < col) {
+                lo = mid + 1;
+            } else if (c > col) {
+                hi = mid - 1;
+            } else {
+                return entries + ModelFile.ENTRY_INTS * mid;
+            }
+        }
+        return -1;
+    }
+
+    private String name(int n) {
+        return names[n];
+    }
+
+    /**
+     * Index of a state or of the name of an Observation, -1 if unknown
+     */
+    private int nameIndex(String name) {
+        Integer idx = nameIndex.get(name);
+        return idx == null ? -1 : idx.intValue();
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Binary file format of a trained HMM, so that a model is trained once and
+ * loaded in milliseconds by the next JVM.
+ *
+ * All values are big-endian, and every section starts on 4 bytes.
+ *
+ *   header   magic "HJMD", version, number of states, of symbols (the
+ *            ObservationKeys), of names, of non zero transitions and
+ *            emissions, the vocabulary sizes used for smoothing, the number
+ *            of training bigrams, the creation time, the index of the most
+ *            frequent state and the length of the description
+ *   names    offsets (number of names + 1) into a UTF-8 blob, padded to 4.
+ *            The first names are the states, sorted, the next ones are the
+ *            names of Observations that are not states.
+ *   states   count of each state
+ *   symbols  name index and code of each symbol, sorted by name then code
+ *   trans    transitions in CSR: row start (states + 1), then for each non
+ *            zero entry the next state, its count and its log probability
+ *            (3 ints), then per state the log probability of the pairs that
+ *            were never counted
+ *   emis     the same for the Observations of each state
+ *   desc     UTF-8 description, padded to 4
+ *
+ * Probabilities are the add-one smoothed ones of HMM.calcPriorProbState and
+ * HMM.calcLikelihood.
+ *
+ * Writing streams the sections out of the count maps, with only one sorted
+ * row at a time in memory. Reading maps the file and reads the values in place,
+ * no object is made per entry.
+ */
+package ML.Train;
+
+import ML.Classify.ObservationKey;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ *
+ * Writes and maps model files
+ */
+public class ModelFile {
+
+    static final int MAGIC = 0x484A4D44;   // "HJMD"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 4 * 12 + 8 * 2;
+    // ints per CSR entry: column, count, log probability
+    static final int ENTRY_INTS = 3;
+
+    private ModelFile() {
+    }
+
+    /**
+     * Write a trained HMM
+     *
+     * @param hmm
+     * @param file
+     * @param description free text kept in the file, may be null
+     * @throws IOException
+     */
+    public static void write(HMM hmm, File file, String description) throws IOException {
+        HMMCounts c = hmm.counts;
+
+        // states: the counted ones, and the ones that only start a sequence
+        TreeSet stateSet = new TreeSet(c.hidnStatesCounts.keySet());
+        Iterator it = c.transitionsProbs.keySet().iterator();
+        while (it.hasNext()) {
+            Object s = it.next();
+            if (s != null) {
+                stateSet.add(s);
+            }
+        }
+        String[] states = (String[]) stateSet.toArray(new String[0]);
+        HashMap nameIndex = new HashMap();
+        ArrayList names = new ArrayList(Arrays.asList(states));
+        for (int idx = 0; idx < states.length; idx++) {
+            nameIndex.put(states[idx], Integer.valueOf(idx));
+        }
+        // names of Observations that are not states
+        TreeSet extra = new TreeSet();
+        it = c.stateForObservationCounts.keySet().iterator();
+        while (it.hasNext()) {
+            String name = ((ObservationKey) it.next()).getName();
+            if (!nameIndex.containsKey(name)) {
+                extra.add(name);
+            }
+        }
+        it = extra.iterator();
+        while (it.hasNext()) {
+            Object name = it.next();
+            nameIndex.put(name, Integer.valueOf(names.size()));
+            names.add(name);
+        }
+
+        // symbols sorted by name index then code
+        ObservationKey[] symbols = (ObservationKey[]) c.stateForObservationCounts.keySet().toArray(new ObservationKey[0]);
+        long[] symbolOrder = new long[symbols.length];
+        for (int idx = 0; idx < symbols.length; idx++) {
+            symbolOrder[idx] = symbolSortKey(((Integer) nameIndex.get(symbols[idx].getName())).intValue(), symbols[idx].getCode());
+        }
+        Arrays.sort(symbolOrder);
+        HashMap symbolIndex = new HashMap();
+        for (int idx = 0; idx < symbols.length; idx++) {
+            long k = symbolSortKey(((Integer) nameIndex.get(symbols[idx].getName())).intValue(), symbols[idx].getCode());
+            symbolIndex.put(symbols[idx], Integer.valueOf(Arrays.binarySearch(symbolOrder, k)));
+        }
+
+        int transNnz = 0, emisNnz = 0;
+        for (int idx = 0; idx < states.length; idx++) {
+            HashMap row = (HashMap) c.transitionsProbs.get(states[idx]);
+            transNnz += row == null ? 0 : row.size();
+            row = (HashMap) c.observationCounts.get(states[idx]);
+            emisNnz += row == null ? 0 : row.size();
+        }
+        byte[] desc = (description == null ? "" : description).getBytes(StandardCharsets.UTF_8);
+        int vocabStates = c.hidnStatesCounts.size();
+        int vocabObs = c.stateForObservationCounts.size();
+        String most = c.mostFrequentState();
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(states.length);
+            out.writeInt(symbols.length);
+            out.writeInt(names.size());
+            out.writeInt(transNnz);
+            out.writeInt(emisNnz);
+            out.writeInt(vocabStates);
+            out.writeInt(vocabObs);
+            out.writeInt(most == null ? -1 : ((Integer) nameIndex.get(most)).intValue());
+            out.writeInt(desc.length);
+            out.writeInt(0);    // reserved
+            out.writeLong(c.numTrainingBigrams);
+            out.writeLong(System.currentTimeMillis());
+
+            // names
+            byte[][] utf = new byte[names.size()][];
+            int off = 0;
+            out.writeInt(0);
+            for (int idx = 0; idx < utf.length; idx++) {
+                utf[idx] = ((String) names.get(idx)).getBytes(StandardCharsets.UTF_8);
+                off += utf[idx].length;
+                out.writeInt(off);
+            }
+            for (int idx = 0; idx < utf.length; idx++) {
+                out.write(utf[idx]);
+            }
+            pad(out, off);
+
+            // states
+            for (int idx = 0; idx < states.length; idx++) {
+                out.writeInt(HMMutilities.countStates(c.hidnStatesCounts, states[idx]));
+            }
+
+            // symbols
+            for (int idx = 0; idx < symbolOrder.length; idx++) {
+                out.writeInt((int) (symbolOrder[idx] >>> 32));
+                out.writeInt((int) symbolOrder[idx] ^ Integer.MIN_VALUE);
+            }
+
+            writeCsr(out, hmm, states, c.transitionsProbs, nameIndex, vocabStates);
+            writeCsr(out, hmm, states, c.observationCounts, symbolIndex, vocabObs);
+
+            out.write(desc);
+            pad(out, desc.length);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Map a model file
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static MappedModel map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel ch = raf.getChannel();
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            return new MappedModel(buf);
+        } finally {
+            // the mapping stays valid once the file is closed
+            raf.close();
+        }
+    }
+
+    /**
+     * A HMM from a model file, or from counts saved by HMMCounts.save()
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static HMM loadHMM(File file) throws IOException {
+        HMM hmm = isModelFile(file) ? map(file).toCounts().toHMM() : HMMCounts.load(file).toHMM();
+        hmm.compile();
+        return hmm;
+    }
+
+    /**
+     * True for a model file (see map()), false for counts saved by
+     * HMMCounts.save()
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static boolean isModelFile(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            return in.readInt() == MAGIC;
+        } finally {
+            in.close();
+        }
+    }
+
+    // codes may be negative, flipping the sign bit keeps the order
+    static long symbolSortKey(int name, int code) {
+        return ((long) name << 32) | ((code ^ Integer.MIN_VALUE) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * One CSR matrix: row starts, then for each non zero entry its column,
+     * count and log probability, then the default log probability of each
+     * row. Rows are sorted by column one at a time while written.
+     */
+    private static void writeCsr(DataOutputStream out, HMM hmm, String[] states,
+            HashMap rows, HashMap columnIndex, int vocab) throws IOException {
+        int start = 0;
+        out.writeInt(0);
+        for (int s = 0; s < states.length; s++) {
+            HashMap row = (HashMap) rows.get(states[s]);
+            start += row == null ? 0 : row.size();
+            out.writeInt(start);
+        }
+        for (int s = 0; s < states.length; s++) {
+            HashMap row = (HashMap) rows.get(states[s]);
+            if (row == null) {
+                continue;
+            }
+            float denom = (float) (HMMutilities.countStates(hmm.hidnStatesCounts, states[s]) + vocab);
+            long[] sorted = new long[row.size()];
+            int idx = 0;
+            Iterator it = row.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry e = (Map.Entry) it.next();
+                int col = ((Integer) columnIndex.get(e.getKey())).intValue();
+                int cnt = ((Integer) e.getValue()).intValue();
+                sorted[idx++] = ((long) col << 32) | (cnt & 0xFFFFFFFFL);
+            }
+            Arrays.sort(sorted);
+            for (idx = 0; idx < sorted.length; idx++) {
+                int cnt = (int) sorted[idx];
+                out.writeInt((int) (sorted[idx] >>> 32));
+                out.writeInt(cnt);
+                out.writeFloat((float) Math.log((cnt + 1) / denom));
+            }
+        }
+        for (int s = 0; s < states.length; s++) {
+            float denom = (float) (HMMutilities.countStates(hmm.hidnStatesCounts, states[s]) + vocab);
+            out.writeFloat((float) Math.log(1 / denom));
+        }
+    }
+
+    private static void pad(DataOutputStream out, int len) throws IOException {
+        while ((len & 3) != 0) {
+            out.writeByte(0);
+            len++;
+        }
+    }
+
+    static int padded(int len) {
+        return (len + 3) & ~3;
+    }
+
+    static String decode(ByteBuffer buf, int off, int len) {
+        byte[] b = new byte[len];
+        ByteBuffer dup = buf.duplicate();
+        dup.position(off);
+        dup.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * The trained models being served, by name. The registry holds one
+ * immutable map of ModelSnapshots behind an AtomicReference:
+ *
+ * - a classification reads the reference once (models() or get()) and keeps
+ *   the snapshots it got until it ends, whatever is published meanwhile
+ * - publishing makes a new map with the new snapshot and swaps it in, so a
+ *   reader sees all the models of one publication or of the next one
+ *
+ * The read path is one volatile read, no lock. Writers retry their swap
+ * when another writer published at the same time. So a model can be trained
+ * again, or continuously kept up to date by an IncrementalTrainer, while
+ * classifications go on.
+ */
+package ML.Train;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ *
+ * Atomically published, versioned trained models
+ */
+public class ModelRegistry {
+
+    private final AtomicReference<Map<String, ModelSnapshot>> models
+            = new AtomicReference<Map<String, ModelSnapshot>>(Collections.<String, ModelSnapshot>emptyMap());
+    private final AtomicLong versions = new AtomicLong();
+
+    /**
+     * Publish a copy of the current counts of hmm under this name, hmm can
+     * then be trained further without changing what is served
+     *
+     * @param name
+     * @param hmm
+     * @return the published snapshot
+     */
+    public ModelSnapshot publish(String name, HMM hmm) {
+        return put(ModelSnapshot.freeze(name, versions.incrementAndGet(), hmm));
+    }
+
+    /**
+     * Same as above from counts
+     *
+     * @param name
+     * @param counts
+     * @return
+     */
+    public ModelSnapshot publish(String name, HMMCounts counts) {
+        return put(new ModelSnapshot(name, versions.incrementAndGet(), counts.copy().toHMM()));
+    }
+
+    /**
+     * Same as above for a model file read in place, nothing is copied: the
+     * similarity is computed over the mapped rows
+     *
+     * @param name
+     * @param model
+     * @return
+     */
+    public ModelSnapshot publish(String name, MappedModel model) {
+        return put(new ModelSnapshot(name, versions.incrementAndGet(), model));
+    }
+
+    /**
+     * Publish a HMM that nobody modifies anymore, without copying it, as
+     * IncrementalTrainer makes them. Nothing is computed here and hmm is not
+     * written to, see ModelSnapshot.
+     */
+    ModelSnapshot publishShared(String name, HMM hmm) {
+        return put(new ModelSnapshot(name, versions.incrementAndGet(), hmm));
+    }
+
+    /**
+     * Stop serving a model, the classifications that already have it keep it
+     *
+     * @param name
+     * @return false when there was no such model
+     */
+    public boolean remove(String name) {
+        while (true) {
+            Map<String, ModelSnapshot> old = models.get();
+            if (!old.containsKey(name)) {
+                return false;
+            }
+            LinkedHashMap<String, ModelSnapshot> next = new LinkedHashMap<String, ModelSnapshot>(old);
+            next.remove(name);
+            if (models.compareAndSet(old, Collections.unmodifiableMap(next))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * The latest snapshot of a model
+     *
+     * @param name
+     * @return null when there is no such model
+     */
+    public ModelSnapshot get(String name) {
+        return models.get().get(name);
+    }
+
+    /**
+     * All the models of the latest publication, in the order they were first
+     * published. The map never changes, hold it for a whole classification.
+     *
+     * @return a read only map
+     */
+    public Map<String, ModelSnapshot> models() {
+        return models.get();
+    }
+
+    /**
+     * The version of the last publication
+     *
+     * @return
+     */
+    public long getVersion() {
+        return versions.get();
+    }
+
+    private ModelSnapshot put(ModelSnapshot snap) {
+        while (true) {
+            Map<String, ModelSnapshot> old = models.get();
+            ModelSnapshot prev = old.get(snap.getName());
+            if (prev != null && prev.getVersion() > snap.getVersion()) {
+                // a later publication of this model already won
+                return prev;
+            }
+            LinkedHashMap<String, ModelSnapshot> next = new LinkedHashMap<String, ModelSnapshot>(old);
+            next.put(snap.getName(), snap);
+            if (models.compareAndSet(old, Collections.unmodifiableMap(next))) {
+                return snap;
+            }
+        }
+    }
+}
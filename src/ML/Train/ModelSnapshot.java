@@ -0,0 +1,260 @@
+/*
+ * HMM keeps its counts in public HashMaps, and EntryPoint.hmmTrain can be
+ * replaced or trained again at any time: a classification running while the
+ * model is retrained could read half updated counts. A ModelSnapshot is a
+ * trained model that never changes: it owns its own copy of the counts,
+ * the HMM made from them never leaves it, and only reading methods are
+ * offered. It can be read by any number of threads without lock.
+ *
+ * Snapshots are made and numbered by a ModelRegistry.
+ *
+ * Nothing is computed when a snapshot is made, an IncrementalTrainer
+ * publishes one at each update. The dense and sparse forms of the model
+ * are made on their first use. The HMM of an IncrementalTrainer is shared
+ * with it and never written to, its probabilities come from the rows the
+ * trainer updated.
+ *
+ * A snapshot can also serve a MappedModel, read in place from its file: the
+ * similarity is computed over its rows (SparseRows), and the counts are
+ * only rebuilt as a HMM for the methods that need one (logLikelihood,
+ * calcLikelihood ...).
+ */
+package ML.Train;
+
+import ML.Classify.Observation;
+import ML.Classify.ObservationKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Set;
+
+/**
+ *
+ * An immutable, versioned trained model
+ */
+public final class ModelSnapshot {
+
+    private final String name;
+    private final long version;
+    private final long created;
+    // null when the snapshot serves a model file
+    private final MappedModel mapped;
+    // never modified, never handed out, made from mapped on first use
+    private volatile HMM hmm;
+    // the same model in sparse rows, for the similarity and the decoding,
+    // and in dense arrays for logLikelihood, made on first use (two threads
+    // may both make them, they are equal)
+    private volatile SparseModel sparse;
+    private volatile DenseHMM dense;
+
+    /**
+     * @param name
+     * @param version
+     * @param hmm nobody may modify it anymore
+     */
+    ModelSnapshot(String name, long version, HMM hmm) {
+        this.name = name;
+        this.version = version;
+        this.hmm = hmm;
+        this.mapped = null;
+        created = System.currentTimeMillis();
+    }
+
+    /**
+     * @param name
+     * @param version
+     * @param model a model file, read in place
+     */
+    ModelSnapshot(String name, long version, MappedModel model) {
+        this.name = name;
+        this.version = version;
+        this.hmm = null;
+        this.mapped = model;
+        created = System.currentTimeMillis();
+    }
+
+    /**
+     * A snapshot of the current counts of hmm, later changes to hmm are not
+     * seen
+     */
+    static ModelSnapshot freeze(String name, long version, HMM hmm) {
+        return new ModelSnapshot(name, version, hmm.getCounts().copy().toHMM());
+    }
+
+    /**
+     * The HMM to read the probabilities from, made from the counts of the
+     * model file at the first call
+     */
+    private HMM model() {
+        HMM h = hmm;
+        if (h == null) {
+            h = mapped.toCounts().toHMM();
+            hmm = h;
+        }
+        return h;
+    }
+
+    /**
+     * The model the similarity is computed over: the model file itself, or
+     * the sparse rows of the HMM
+     *
+     * @return
+     */
+    public SparseRows getRows() {
+        return mapped != null ? mapped : getSparseModel();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Increases at each publication in the registry
+     *
+     * @return
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    /**
+     * Similarity of a test HMM with this model, the value of
+     * Viterbi.viterbi(), over the counted transitions only
+     *
+     * @param test
+     * @return
+     */
+    public float similarity(HMM test) {
+        return similarity(SparseModel.of(test));
+    }
+
+    /**
+     * Same as above, the test model is converted once for all the snapshots
+     *
+     * @param test
+     * @return
+     */
+    public float similarity(SparseModel test) {
+        return SparseModel.similarity(getRows(), test);
+    }
+
+    /**
+     * The model in sparse rows, for instance to decode with BeamViterbi.
+     * A model file is copied out of the file, getRows() reads it in place.
+     *
+     * @return
+     */
+    public SparseModel getSparseModel() {
+        SparseModel s = sparse;
+        if (s == null) {
+            s = mapped != null ? mapped.toSparse() : SparseModel.of(hmm);
+            sparse = s;
+        }
+        return s;
+    }
+
+    /**
+     * The model in dense arrays, as HMM.getDenseModel() but kept here so
+     * that a shared HMM is not written to
+     *
+     * @return
+     */
+    public DenseHMM getDenseModel() {
+        DenseHMM d = dense;
+        if (d == null) {
+            d = DenseHMM.fromCounts(model());
+            dense = d;
+        }
+        return d;
+    }
+
+    /**
+     * log P(observations | this model), see HMM.logLikelihood()
+     *
+     * @param observations
+     * @return
+     */
+    public double logLikelihood(ArrayList observations) {
+        return getDenseModel().logLikelihood(observations);
+    }
+
+    /**
+     * Same as above, stopping once the score is below bound
+     *
+     * @param observations
+     * @param bound
+     * @return the log likelihood, or a value below bound
+     */
+    public double logLikelihood(ArrayList observations, double bound) {
+        return getDenseModel().logLikelihood(observations, bound);
+    }
+
+    public float calcLikelihood(String state, Observation word) {
+        return model().calcLikelihood(state, word);
+    }
+
+    public float calcLikelihood(String state, ObservationKey word) {
+        return model().calcLikelihood(state, word);
+    }
+
+    public float calcPriorProbState(String state1, String state2) {
+        return model().calcPriorProbState(state1, state2);
+    }
+
+    /**
+     * The states that follow state in the training, empty when state is not
+     * known
+     *
+     * @param state
+     * @return a read only set
+     */
+    public Set nextStates(String state) {
+        HashMap row = (HashMap) model().transitionsProbs.get(state);
+        return row == null ? Collections.EMPTY_SET : Collections.unmodifiableSet(row.keySet());
+    }
+
+    /**
+     * The hidden states of the model
+     *
+     * @return a read only set
+     */
+    public Set getStates() {
+        return Collections.unmodifiableSet(model().hidnStatesCounts.keySet());
+    }
+
+    public String getMostFreqState() {
+        return mapped != null ? mapped.getMostFreqState() : hmm.mostFreqState;
+    }
+
+    public long getNumTrainingBigrams() {
+        return mapped != null ? mapped.getNumTrainingBigrams() : hmm.getCounts().getNumTrainingBigrams();
+    }
+
+    /**
+     * A copy of the counts, for instance to train further from them
+     *
+     * @return
+     */
+    public HMMCounts getCounts() {
+        return mapped != null ? mapped.toCounts() : hmm.getCounts().copy();
+    }
+
+    /**
+     * Write it as a model file, to be mapped by another process
+     *
+     * @param file
+     * @throws java.io.IOException
+     */
+    public void write(java.io.File file) throws java.io.IOException {
+        ModelFile.write(model(), file, name + " v" + version);
+    }
+
+    @Override
+    public String toString() {
+        return name + " v" + version;
+    }
+}
@@ -0,0 +1,50 @@
+package ML.Train;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * The add-one smoothed probabilities of one state of a HMM: either the
+ * transitions from this state, or the Observations seen in this state.
+ *
+ * Only the pairs that were counted have an entry, all the others have the
+ * default probability 1 / (count of the state + vocabulary size).
+ *
+ * A row is immutable, so it can be shared between the successive models of
+ * an IncrementalTrainer when its counts did not change.
+ *
+ */
+public class ProbabilityRow {
+
+    private final HashMap probs;    // HashMap<next state or ObservationKey, Float>
+    private final float dflt;
+
+    /**
+     * @param counts the counts of this row (next state or Observation => count), may be null
+     * @param stateCount the number of times the state was seen
+     * @param vocabSize number of states, or of Observations
+     */
+    public ProbabilityRow(HashMap counts, int stateCount, int vocabSize) {
+        float trois = (float) (stateCount + vocabSize);
+        probs = new HashMap();
+        if (counts != null) {
+            Iterator it = counts.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry e = (Map.Entry) it.next();
+                float deux = (float) (((Integer) e.getValue()).intValue() + 1);
+                probs.put(e.getKey(), Float.valueOf(deux / trois));
+            }
+        }
+        dflt = 1 / trois;
+    }
+
+    public float get(Object key) {
+        Float p = (Float) probs.get(key);
+        return p == null ? dflt : p.floatValue();
+    }
+
+    public float getDefault() {
+        return dflt;
+    }
+}
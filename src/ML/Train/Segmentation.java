@@ -10,10 +10,12 @@
 package ML.Train;
 
 import ML.Classify.Observation;
+import ML.Classify.PDefFeats;
 import ML.featureDetection.Event;
 import ML.featureDetection.FindBeats;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.concurrent.SubmissionPublisher;
 
 /**
  *
@@ -23,6 +25,15 @@ public class Segmentation {
 
     public ArrayList segmentedBeats = new ArrayList();
     private final FindBeats cb;
+    // when true, Observations only know the length of their signature
+    private boolean lazySign = false;
+    // when not null, each Observation is published once it is complete
+    private SubmissionPublisher<Observation> publisher = null;
+    private SignatureCodebook pubCodebook = null;
+    private PDefFeats pubPredef = null;
+    // the last Observation can still be marked as noisy, it is published
+    // when the next one comes
+    private Observation pending = null;
 
     public Segmentation(FindBeats cibi) {
         cb = cibi;
@@ -57,6 +68,10 @@ public class Segmentation {
         // We try to find which S1 is the closest.
         segmentBeats(itrMB, norm);
 
+        if (pending != null) {
+            publish(pending);
+            pending = null;
+        }
     }
 
     /**
@@ -103,8 +118,47 @@ public class Segmentation {
         }
     }
 
+    /**
+     * When only the length of the beat signatures is used (for the suffix of
+     * the Observations names), the signatures are computed on demand
+     *
+     * @param lazy
+     */
+    public void setLazySignatures(boolean lazy) {
+        lazySign = lazy;
+    }
+
+    /**
+     * Publish the Observations while the beats are segmented. They are named
+     * (suffix from the codebook, or from the signature length when it is null)
+     * and get the predefined features before being published, so subscribers
+     * see them as TrainOne returns them. The publisher is not closed.
+     *
+     * @param pub
+     * @param codebook
+     * @param predef
+     */
+    public void setPublisher(SubmissionPublisher<Observation> pub, SignatureCodebook codebook, PDefFeats predef) {
+        publisher = pub;
+        pubCodebook = codebook;
+        pubPredef = predef;
+    }
+
     public void addEvents(Observation eventHMM) {
         segmentedBeats.add(eventHMM);
+        if (publisher != null) {
+            if (pending != null) {
+                publish(pending);
+            }
+            pending = eventHMM;
+        }
+    }
+
+    private void publish(Observation obs) {
+        obs.setNameSufx(SignatureCodebook.suffixFor(pubCodebook, obs));
+        obs.addPreDef(pubPredef);
+        // waits while a subscriber has no room left
+        publisher.submit(obs);
     }
 
     ArrayList getSegmentedBeats() {
@@ -116,27 +170,33 @@ public class Segmentation {
         // Obtain a FFT of the time between S1base and Sx and make a string of it
         // First get the sample between S1base and Sx
         float[] data = norm.getNormalizedData();
-        float[] sample = new float[(Sx - S1base) + 1];
-        if (sample.length < 3) {
+        if ((Sx - S1base) + 1 < 3) {
             // not enough values in sample
             return null;
         }
 
-        // arraycopy(Object src, int srcPos, Object dest, int destPos, int length)
-        System.arraycopy(data, S1base, sample, 0, Sx - S1base);
-
         float offsetAbs = (Sx - S1base);
         float offsetRel = (float) (Sx - S1base) / (float) (S1next - S1base);
 
-        // calculate a beat signature
-        ArrayList efft = cb.beatSign(sample);
-
         // For the HMM to separate the observations in more cases than S1-S4, we need to
         // add a "minor" numbering to the "Sx" string.
         // However it will be added later, to have a reasonnable amount of Observations
-        Observation obs = new Observation(
-                pref, sufx, Sx, offsetRel, offsetAbs, efft,
-                norm.getNoisyFile(), norm.getShift(), 0);
+        Observation obs;
+        if (lazySign) {
+            // only count the runs, in one pass and without storing them, the
+            // signature can be made later from the normalized data
+            float treshold = cb.beatSignTreshold(data, S1base, Sx);
+            int runs = cb.beatSignLength(data, S1base, Sx, treshold);
+            obs = new Observation(
+                    pref, sufx, Sx, offsetRel, offsetAbs, S1base, Sx, treshold, runs,
+                    norm.getNoisyFile(), norm.getShift(), 0);
+        } else {
+            // calculate a beat signature, directly on the samples between S1base and Sx
+            int[] efft = cb.beatSign(data, S1base, Sx);
+            obs = new Observation(
+                    pref, sufx, Sx, offsetRel, offsetAbs, efft,
+                    norm.getNoisyFile(), norm.getShift(), 0);
+        }
 
         return obs;
     }
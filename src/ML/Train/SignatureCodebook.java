@@ -0,0 +1,367 @@
+/*
+ * Vector quantization of the beat signatures.
+ *
+ * Each Observation is described by a small feature vector made from its
+ * signature (number of runs, histogram of the run lengths) and its relative
+ * position in the beat. A k-means over the training Observations gives K
+ * centroids, and an Observation is then encoded as the index of its nearest
+ * centroid. This index replaces the "size % 20" suffix of the Observation
+ * names, so the alphabet of the HMM is small and fixed, whatever the size of
+ * the corpus.
+ *
+ * The k-means is parallel: each iteration assigns the vectors to their
+ * nearest centroid shard by shard on a fork/join pool, the shards also sum
+ * their vectors per centroid, and the partial sums are reduced to the new
+ * centroids. It stops when no vector changes of centroid (a fixed point) or
+ * after a maximum number of iterations.
+ */
+package ML.Train;
+
+import ML.Classify.Observation;
+import ML.Classify.ObservationStore;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ *
+ * A trained codebook, it is immutable once built.
+ */
+public class SignatureCodebook {
+
+    // log(1 + runs), relative shift, then the run lengths histogram
+    public static final int DIM = 8;
+    private static final int HISTO_BINS = DIM - 2;
+
+    // vectors per fork/join task
+    private static final int SHARD = 4096;
+
+    private final int k;
+    private final float[] centroids;   // k * DIM
+    private final float[] norms;       // squared norm of each centroid
+
+    private SignatureCodebook(int k, float[] centroids) {
+        this.k = k;
+        this.centroids = centroids;
+        norms = new float[k];
+        for (int c = 0; c < k; c++) {
+            float n = 0;
+            for (int d = 0; d < DIM; d++) {
+                float v = centroids[c * DIM + d];
+                n += v * v;
+            }
+            norms[c] = n;
+        }
+    }
+
+    public int size() {
+        return k;
+    }
+
+    /**
+     * Train a codebook of k symbols over a list of Observations (as made by
+     * Segmentation)
+     *
+     * @param observations
+     * @param k
+     * @param maxIter
+     * @param seed
+     * @return
+     */
+    public static SignatureCodebook train(ArrayList observations, int k, int maxIter, long seed) {
+        int n = observations.size();
+        float[] data = new float[n * DIM];
+        float[] v = new float[DIM];
+        for (int idx = 0; idx < n; idx++) {
+            featureVector((Observation) observations.get(idx), v);
+            System.arraycopy(v, 0, data, idx * DIM, DIM);
+        }
+        return train(data, n, k, maxIter, seed);
+    }
+
+    /**
+     * Same as above, for Observations in a store that kept their signatures
+     *
+     * @param store
+     * @param k
+     * @param maxIter
+     * @param seed
+     * @return
+     */
+    public static SignatureCodebook train(ObservationStore store, int k, int maxIter, long seed) {
+        int n = store.size();
+        float[] data = new float[n * DIM];
+        float[] v = new float[DIM];
+        for (int idx = 0; idx < n; idx++) {
+            featureVector(store, idx, v);
+            System.arraycopy(v, 0, data, idx * DIM, DIM);
+        }
+        return train(data, n, k, maxIter, seed);
+    }
+
+    /**
+     * k-means over n vectors of DIM floats
+     *
+     * @param data
+     * @param n
+     * @param k
+     * @param maxIter
+     * @param seed
+     * @return
+     */
+    public static SignatureCodebook train(float[] data, int n, int k, int maxIter, long seed) {
+        if (n == 0) {
+            throw new IllegalArgumentException("No Observations to train the codebook on");
+        }
+        k = Math.min(k, n);
+        float[] centroids = seedCentroids(data, n, k, new Random(seed));
+        int[] assign = new int[n];
+        Arrays.fill(assign, -1);
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+
+        for (int iter = 0; iter < maxIter; iter++) {
+            SignatureCodebook current = new SignatureCodebook(k, centroids);
+            Partial p = pool.invoke(new AssignTask(current, data, assign, 0, n));
+
+            float[] next = new float[k * DIM];
+            for (int c = 0; c < k; c++) {
+                if (p.counts[c] == 0) {
+                    // an empty cluster keeps its centroid
+                    System.arraycopy(centroids, c * DIM, next, c * DIM, DIM);
+                    continue;
+                }
+                for (int d = 0; d < DIM; d++) {
+                    next[c * DIM + d] = (float) (p.sums[c * DIM + d] / p.counts[c]);
+                }
+            }
+            centroids = next;
+            if (p.changed == 0) {
+                // fixed point, no vector moved
+                break;
+            }
+        }
+        return new SignatureCodebook(k, centroids);
+    }
+
+    /**
+     * The symbol of an Observation, its signature is computed if it was lazy
+     *
+     * @param obs
+     * @return
+     */
+    public int encode(Observation obs) {
+        float[] v = new float[DIM];
+        featureVector(obs, v);
+        return encode(v, 0);
+    }
+
+    /**
+     * Nearest centroid of data[off..off+DIM[.
+     * |x - c|^2 = |x|^2 - 2 x.c + |c|^2 and |x|^2 is the same for all
+     * centroids, so only x.c is computed, the |c|^2 are precomputed.
+     *
+     * @param data
+     * @param off
+     * @return
+     */
+    public int encode(float[] data, int off) {
+        int best = 0;
+        float bestDist = Float.MAX_VALUE;
+        for (int c = 0; c < k; c++) {
+            int base = c * DIM;
+            float dot = 0;
+            for (int d = 0; d < DIM; d++) {
+                dot += data[off + d] * centroids[base + d];
+            }
+            float dist = norms[c] - 2 * dot;
+            if (dist < bestDist) {
+                bestDist = dist;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * The suffix of the name of an Observation: the codebook symbol, or
+     * without codebook the length of the signature modulo 20
+     *
+     * @param cb may be null
+     * @param obs
+     * @return
+     */
+    public static String suffixFor(SignatureCodebook cb, Observation obs) {
+        if (cb == null) {
+            // Lets have no more than 20 Observations
+            return String.valueOf(obs.getSignLength() % 20);
+        }
+        return String.valueOf(cb.encode(obs));
+    }
+
+    public static void featureVector(Observation obs, float[] out) {
+        featureVector(obs.getSign(), 0, obs.getSignLength(), obs.getShiftRel(), out);
+    }
+
+    /**
+     * The feature vector of Observation i, from the columns of a store
+     *
+     * @param store
+     * @param i
+     * @param out
+     * @throws IllegalStateException when the store did not keep the signatures
+     */
+    public static void featureVector(ObservationStore store, int i, float[] out) {
+        if (!store.hasSign(i)) {
+            throw new IllegalStateException("The signature of " + store.stateName(i) + " was not kept");
+        }
+        featureVector(store.signArena(), store.signOffset(i), store.signLength(i), store.shiftRel(i), out);
+    }
+
+    private static void featureVector(int[] runs, int off, int len, float shiftRel, float[] out) {
+        for (int d = 0; d < DIM; d++) {
+            out[d] = 0;
+        }
+        out[0] = (float) Math.log(1 + len);
+        out[1] = shiftRel;
+        for (int idx = off; idx < off + len; idx++) {
+            // run lengths by order of magnitude 1, 2-3, 4-7, ...
+            int bin = 31 - Integer.numberOfLeadingZeros(Math.max(runs[idx], 1));
+            out[2 + Math.min(bin, HISTO_BINS - 1)] += 1;
+        }
+        if (len > 0) {
+            for (int d = 2; d < DIM; d++) {
+                out[d] /= len;
+            }
+        }
+    }
+
+    /**
+     * k-means++ seeding, the centroids are spread over the data
+     */
+    private static float[] seedCentroids(float[] data, int n, int k, Random rnd) {
+        float[] centroids = new float[k * DIM];
+        float[] dist = new float[n];
+        int first = rnd.nextInt(n);
+        System.arraycopy(data, first * DIM, centroids, 0, DIM);
+        Arrays.fill(dist, Float.MAX_VALUE);
+        for (int c = 1; c < k; c++) {
+            double total = 0;
+            for (int idx = 0; idx < n; idx++) {
+                float dd = 0;
+                for (int d = 0; d < DIM; d++) {
+                    float diff = data[idx * DIM + d] - centroids[(c - 1) * DIM + d];
+                    dd += diff * diff;
+                }
+                if (dd < dist[idx]) {
+                    dist[idx] = dd;
+                }
+                total += dist[idx];
+            }
+            int pick = 0;
+            if (total > 0) {
+                double r = rnd.nextDouble() * total;
+                while ((pick < n - 1) && (r > dist[pick])) {
+                    r -= dist[pick];
+                    pick++;
+                }
+            } else {
+                pick = rnd.nextInt(n);
+            }
+            System.arraycopy(data, pick * DIM, centroids, c * DIM, DIM);
+        }
+        return centroids;
+    }
+
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(k);
+        out.writeInt(DIM);
+        for (int idx = 0; idx < centroids.length; idx++) {
+            out.writeFloat(centroids[idx]);
+        }
+    }
+
+    public static SignatureCodebook read(DataInput in) throws IOException {
+        int k = in.readInt();
+        int dim = in.readInt();
+        if (dim != DIM) {
+            throw new IOException("Codebook of dimension " + dim + ", expected " + DIM);
+        }
+        float[] c = new float[k * DIM];
+        for (int idx = 0; idx < c.length; idx++) {
+            c[idx] = in.readFloat();
+        }
+        return new SignatureCodebook(k, c);
+    }
+
+    /**
+     * Sums of the vectors per centroid, for a shard of the data
+     */
+    private static class Partial {
+
+        final double[] sums;
+        final int[] counts;
+        int changed;
+
+        Partial(int k) {
+            sums = new double[k * DIM];
+            counts = new int[k];
+            changed = 0;
+        }
+
+        Partial merge(Partial o) {
+            for (int idx = 0; idx < sums.length; idx++) {
+                sums[idx] += o.sums[idx];
+            }
+            for (int idx = 0; idx < counts.length; idx++) {
+                counts[idx] += o.counts[idx];
+            }
+            changed += o.changed;
+            return this;
+        }
+    }
+
+    private static class AssignTask extends RecursiveTask<Partial> {
+
+        private final SignatureCodebook cb;
+        private final float[] data;
+        private final int[] assign;
+        private final int from, to;
+
+        AssignTask(SignatureCodebook cb, float[] data, int[] assign, int from, int to) {
+            this.cb = cb;
+            this.data = data;
+            this.assign = assign;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Partial compute() {
+            if (to - from > SHARD) {
+                int mid = (from + to) >>> 1;
+                AssignTask left = new AssignTask(cb, data, assign, from, mid);
+                left.fork();
+                Partial right = new AssignTask(cb, data, assign, mid, to).compute();
+                return left.join().merge(right);
+            }
+            Partial p = new Partial(cb.k);
+            for (int idx = from; idx < to; idx++) {
+                int c = cb.encode(data, idx * DIM);
+                if (assign[idx] != c) {
+                    assign[idx] = c;
+                    p.changed++;
+                }
+                p.counts[c]++;
+                for (int d = 0; d < DIM; d++) {
+                    p.sums[c * DIM + d] += data[idx * DIM + d];
+                }
+            }
+            return p;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package ML.Train;
+
+import ML.Classify.ObservationKey;
+import ML.Classify.SymbolTable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * The add-one smoothed probabilities of a HMM in dense tables, see
+ * HMM.compile().
+ *
+ * The vocabulary sizes and the denominator of each state (its count + the
+ * vocabulary size) are frozen when the tables are built. The states and the
+ * Observations are numbered from their ids in SymbolTable.states(), which
+ * Observation.getStateId() and ObservationKey keep, so that a probability is
+ * found with a few array reads and no hashing.
+ *
+ * The tables are never modified once built, they can be shared between
+ * threads.
+ *
+ */
+final class SmoothingTables {
+
+    private final int nbStates;
+    private final int nbSymbols;
+
+    // SymbolTable id => index of the state, -1 when it is not a state
+    private final int[] stateOfId;
+    // SymbolTable id => (code of the ObservationKey => index of the symbol, -1)
+    private final int[][] symbolOfId;
+
+    private final float[] prior;            // nbStates * nbStates
+    private final float[] priorDefault;     // 1 / (count + vocabulary), by state
+    private final float priorUnknown;       // for a state that was never counted
+    private final float[] likelihood;       // nbStates * nbSymbols
+    private final float[] likelihoodDefault;
+    private final float likelihoodUnknown;
+
+    SmoothingTables(HMM hmm) {
+        SymbolTable table = SymbolTable.states();
+
+        // the counted states, the ones that only start a sequence and the
+        // ones that only follow another (null, the start of HMM.train(), is
+        // left to the maps)
+        HashSet states = new HashSet();
+        addStates(states, hmm.hidnStatesCounts.keySet().iterator());
+        addStates(states, hmm.transitionsProbs.keySet().iterator());
+        addStates(states, hmm.observationCounts.keySet().iterator());
+        Iterator it = hmm.transitionsProbs.values().iterator();
+        while (it.hasNext()) {
+            addStates(states, ((HashMap) it.next()).keySet().iterator());
+        }
+        String[] names = (String[]) states.toArray(new String[0]);
+        nbStates = names.length;
+        int[] ids = new int[nbStates];
+        int maxId = -1;
+        for (int i = 0; i < nbStates; i++) {
+            ids[i] = table.intern(names[i]);
+            maxId = Math.max(maxId, ids[i]);
+        }
+        ObservationKey[] keys = (ObservationKey[]) hmm.stateForObservationCounts.keySet().toArray(new ObservationKey[0]);
+        nbSymbols = keys.length;
+        for (int m = 0; m < nbSymbols; m++) {
+            maxId = Math.max(maxId, keys[m].getSymbol());
+        }
+        // highest code of each symbol
+        int[] maxCode = new int[maxId + 1];
+        Arrays.fill(maxCode, -1);
+        for (int m = 0; m < nbSymbols; m++) {
+            if (keys[m].getCode() < 0) {
+                throw new IllegalStateException("Negative code in " + keys[m]);
+            }
+            maxCode[keys[m].getSymbol()] = Math.max(maxCode[keys[m].getSymbol()], keys[m].getCode());
+        }
+
+        stateOfId = new int[maxId + 1];
+        Arrays.fill(stateOfId, -1);
+        for (int i = 0; i < nbStates; i++) {
+            stateOfId[ids[i]] = i;
+        }
+        symbolOfId = new int[maxId + 1][];
+        for (int id = 0; id <= maxId; id++) {
+            if (maxCode[id] >= 0) {
+                symbolOfId[id] = new int[maxCode[id] + 1];
+                Arrays.fill(symbolOfId[id], -1);
+            }
+        }
+        for (int m = 0; m < nbSymbols; m++) {
+            symbolOfId[keys[m].getSymbol()][keys[m].getCode()] = m;
+        }
+
+        // same values as HMM.calcPriorProbState and HMM.calcLikelihood
+        int vocabStates = hmm.hidnStatesCounts.keySet().size();
+        int vocabSymbols = hmm.stateForObservationCounts.keySet().size();
+        priorUnknown = 1.0F / vocabStates;
+        likelihoodUnknown = 1.0F / vocabSymbols;
+        prior = new float[nbStates * nbStates];
+        priorDefault = new float[nbStates];
+        likelihood = new float[nbStates * nbSymbols];
+        likelihoodDefault = new float[nbStates];
+        for (int i = 0; i < nbStates; i++) {
+            int count = HMMutilities.countStates(hmm.hidnStatesCounts, names[i]);
+            float trois = (float) (count + vocabStates);
+            priorDefault[i] = 1 / trois;
+            Arrays.fill(prior, i * nbStates, (i + 1) * nbStates, priorDefault[i]);
+            HashMap row = (HashMap) hmm.transitionsProbs.get(names[i]);
+            if (row != null) {
+                Iterator e = row.entrySet().iterator();
+                while (e.hasNext()) {
+                    Map.Entry en = (Map.Entry) e.next();
+                    if (en.getKey() != null) {
+                        int j = stateOfId[table.lookup((String) en.getKey())];
+                        prior[i * nbStates + j] = (((Integer) en.getValue()).intValue() + 1) / trois;
+                    }
+                }
+            }
+
+            trois = (float) (count + vocabSymbols);
+            likelihoodDefault[i] = 1 / trois;
+            Arrays.fill(likelihood, i * nbSymbols, (i + 1) * nbSymbols, likelihoodDefault[i]);
+            row = (HashMap) hmm.observationCounts.get(names[i]);
+            if (row != null) {
+                Iterator e = row.entrySet().iterator();
+                while (e.hasNext()) {
+                    Map.Entry en = (Map.Entry) e.next();
+                    int m = symbolIndex((ObservationKey) en.getKey());
+                    if (m >= 0) {
+                        likelihood[i * nbSymbols + m] = (((Integer) en.getValue()).intValue() + 1) / trois;
+                    }
+                }
+            }
+        }
+    }
+
+    private static void addStates(HashSet states, Iterator it) {
+        while (it.hasNext()) {
+            Object s = it.next();
+            if (s != null) {
+                states.add(s);
+            }
+        }
+    }
+
+    int getNbStates() {
+        return nbStates;
+    }
+
+    int getNbSymbols() {
+        return nbSymbols;
+    }
+
+    /**
+     * @param id the id of a state in SymbolTable.states()
+     * @return its index here, -1 when the HMM does not know it
+     */
+    int stateOfId(int id) {
+        return id >= 0 && id < stateOfId.length ? stateOfId[id] : -1;
+    }
+
+    int stateIndex(String state) {
+        return stateOfId(SymbolTable.states().lookup(state));
+    }
+
+    /**
+     * @param key
+     * @return its index here, -1 when it was never seen in training
+     */
+    int symbolIndex(ObservationKey key) {
+        int id = key.getSymbol();
+        if (id < 0 || id >= symbolOfId.length) {
+            return -1;
+        }
+        int[] codes = symbolOfId[id];
+        int code = key.getCode();
+        return codes != null && code >= 0 && code < codes.length ? codes[code] : -1;
+    }
+
+    float prior(int i, int j) {
+        if (i < 0) {
+            return priorUnknown;
+        }
+        return j < 0 ? priorDefault[i] : prior[i * nbStates + j];
+    }
+
+    float likelihood(int i, int m) {
+        if (i < 0) {
+            return likelihoodUnknown;
+        }
+        return m < 0 ? likelihoodDefault[i] : likelihood[i * nbSymbols + m];
+    }
+}
@@ -0,0 +1,344 @@
+/*
+ * Most pairs of states are never seen one after the other: S1.x is followed
+ * by some S2.y, seldom by another S1. The maps of HMM only keep the counted
+ * pairs, but a dense table (DenseHMM) or a comparison of every pair touches
+ * N * N entries.
+ *
+ * Here each row keeps its counted entries in compressed sparse rows (CSR):
+ * the columns sorted, their counts and log probabilities, and the log
+ * probability of the pairs that were never counted, so that
+ *
+ *   log P(j | i) = logProb of the entry (i, j) if it was counted
+ *                = log(1 / (count(i) + number of states)) otherwise
+ *
+ * which is the add-one smoothing of HMM.calcPriorProbState (and the same for
+ * the Observations with HMM.calcLikelihood). It is the layout of ModelFile,
+ * in arrays.
+ *
+ * The memory and the time of decoding (BeamViterbi) and of the similarity
+ * grow with the counted transitions, not with N * N. The arrays are never
+ * modified once built, a SparseModel can be shared between threads.
+ */
+package ML.Train;
+
+import ML.Classify.ObservationKey;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ *
+ * Immutable trained model in compressed sparse rows
+ */
+public final class SparseModel implements SparseRows {
+
+    /**
+     * One CSR matrix of nbRows rows
+     */
+    static final class Csr {
+
+        final int[] rowStart;
+        final int[] column;
+        final int[] count;
+        final float[] logProb;
+        final float[] defaultLogProb;
+
+        Csr(int nbRows, int nnz) {
+            rowStart = new int[nbRows + 1];
+            column = new int[nnz];
+            count = new int[nnz];
+            logProb = new float[nnz];
+            defaultLogProb = new float[nbRows];
+        }
+
+        /**
+         * Index of the entry (i, col), -1 when it was not counted
+         */
+        int find(int i, int col) {
+            int e = Arrays.binarySearch(column, rowStart[i], rowStart[i + 1], col);
+            return e < 0 ? -1 : e;
+        }
+    }
+
+    private final String[] states;
+    private final int[] stateCounts;
+    private final ObservationKey[] symbols;
+    private final HashMap<String, Integer> stateIndex;
+    private final HashMap<ObservationKey, Integer> symbolIndex;
+    private final Csr trans;
+    private final Csr emis;
+    private final long numTrainingBigrams;
+
+    SparseModel(String[] states, int[] stateCounts, ObservationKey[] symbols, Csr trans, Csr emis, long numTrainingBigrams) {
+        this.states = states;
+        this.stateCounts = stateCounts;
+        this.symbols = symbols;
+        this.trans = trans;
+        this.emis = emis;
+        this.numTrainingBigrams = numTrainingBigrams;
+        stateIndex = new HashMap<String, Integer>();
+        for (int i = 0; i < states.length; i++) {
+            stateIndex.put(states[i], Integer.valueOf(i));
+        }
+        symbolIndex = new HashMap<ObservationKey, Integer>();
+        for (int m = 0; m < symbols.length; m++) {
+            symbolIndex.put(symbols[m], Integer.valueOf(m));
+        }
+    }
+
+    /**
+     * The sparse rows of a trained HMM, with the probabilities of its counts
+     *
+     * @param hmm
+     * @return
+     */
+    public static SparseModel of(HMM hmm) {
+        return of(hmm.getCounts());
+    }
+
+    /**
+     * Same as above from counts
+     *
+     * @param c
+     * @return
+     */
+    public static SparseModel of(HMMCounts c) {
+        // states: the counted ones, and the ones that only start a sequence
+        TreeSet<String> stateSet = new TreeSet<String>();
+        Iterator it = c.hidnStatesCounts.keySet().iterator();
+        while (it.hasNext()) {
+            stateSet.add((String) it.next());
+        }
+        it = c.transitionsProbs.keySet().iterator();
+        while (it.hasNext()) {
+            Object s = it.next();
+            if (s != null) {
+                stateSet.add((String) s);
+            }
+        }
+        String[] st = stateSet.toArray(new String[0]);
+        HashMap<Object, Integer> stIdx = new HashMap<Object, Integer>();
+        int[] counts = new int[st.length];
+        for (int i = 0; i < st.length; i++) {
+            stIdx.put(st[i], Integer.valueOf(i));
+            counts[i] = HMMutilities.countStates(c.hidnStatesCounts, st[i]);
+        }
+        ObservationKey[] keys = (ObservationKey[]) c.stateForObservationCounts.keySet().toArray(new ObservationKey[0]);
+        HashMap<Object, Integer> symIdx = new HashMap<Object, Integer>();
+        for (int m = 0; m < keys.length; m++) {
+            symIdx.put(keys[m], Integer.valueOf(m));
+        }
+        Csr t = build(c.transitionsProbs, st, counts, stIdx, c.hidnStatesCounts.size());
+        Csr e = build(c.observationCounts, st, counts, symIdx, c.stateForObservationCounts.size());
+        return new SparseModel(st, counts, keys, t, e, c.numTrainingBigrams);
+    }
+
+    /**
+     * One CSR matrix out of nested count maps, with the smoothing of HMM
+     */
+    private static Csr build(HashMap rows, String[] st, int[] counts, HashMap<Object, Integer> columns, int vocab) {
+        int nnz = 0;
+        for (int i = 0; i < st.length; i++) {
+            HashMap row = (HashMap) rows.get(st[i]);
+            nnz += row == null ? 0 : row.size();
+        }
+        Csr c = new Csr(st.length, nnz);
+        int e = 0;
+        for (int i = 0; i < st.length; i++) {
+            c.rowStart[i] = e;
+            float denom = (float) (counts[i] + vocab);
+            c.defaultLogProb[i] = (float) Math.log(1 / denom);
+            HashMap row = (HashMap) rows.get(st[i]);
+            if (row == null) {
+                continue;
+            }
+            // column in the high bits, count in the low ones, sorted by column
+            long[] sorted = new long[row.size()];
+            int k = 0;
+            Iterator it = row.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry en = (Map.Entry) it.next();
+                int col = columns.get(en.getKey()).intValue();
+                sorted[k++] = ((long) col << 32) | (((Integer) en.getValue()).intValue() & 0xFFFFFFFFL);
+            }
+            Arrays.sort(sorted);
+            for (k = 0; k < sorted.length; k++) {
+                int cnt = (int) sorted[k];
+                c.column[e] = (int) (sorted[k] >>> 32);
+                c.count[e] = cnt;
+                c.logProb[e] = (float) Math.log((cnt + 1) / denom);
+                e++;
+            }
+        }
+        c.rowStart[st.length] = e;
+        return c;
+    }
+
+    /**
+     * Similarity of a test model with this (trained) one, the value of
+     * Viterbi.viterbi(): for each state of the test model that has successors,
+     * the fraction of them that are also successors of that state here
+     * (0 when this model does not know the state), averaged over those
+     * states. Only the counted entries of both models are visited.
+     *
+     * @param test
+     * @return
+     */
+    public float similarity(SparseModel test) {
+        return similarity(this, test);
+    }
+
+    /**
+     * Same as above for any trained model, for instance a MappedModel read in
+     * place from its file
+     *
+     * @param model
+     * @param test
+     * @return
+     */
+    public static float similarity(SparseRows model, SparseModel test) {
+        // the states of the test model, numbered in model
+        int[] here = new int[test.states.length];
+        for (int i = 0; i < here.length; i++) {
+            here[i] = model.stateIndex(test.states[i]);
+        }
+        float globalScore = 0;
+        int rows = 0;
+        for (int i = 0; i < here.length; i++) {
+            int from = test.trans.rowStart[i];
+            int to = test.trans.rowStart[i + 1];
+            if (from == to) {
+                continue;
+            }
+            rows++;
+            int row = here[i];
+            if (row < 0) {
+                continue;
+            }
+            int matched = 0;
+            for (int e = from; e < to; e++) {
+                int j = here[test.trans.column[e]];
+                if (j >= 0 && model.hasTransition(row, j)) {
+                    matched++;
+                }
+            }
+            globalScore += (float) matched / (to - from);
+        }
+        return rows == 0 ? 0 : globalScore / rows;
+    }
+
+    /**
+     * Same as above, for a test HMM
+     *
+     * @param test
+     * @return
+     */
+    public float similarity(HMM test) {
+        return similarity(of(test));
+    }
+
+    public int getNbStates() {
+        return states.length;
+    }
+
+    public int getNbSymbols() {
+        return symbols.length;
+    }
+
+    /**
+     * Number of counted transitions
+     *
+     * @return
+     */
+    public int getTransitionsNnz() {
+        return trans.column.length;
+    }
+
+    /**
+     * Number of counted (state, Observation) pairs
+     *
+     * @return
+     */
+    public int getEmissionsNnz() {
+        return emis.column.length;
+    }
+
+    public long getNumTrainingBigrams() {
+        return numTrainingBigrams;
+    }
+
+    public String stateName(int i) {
+        return states[i];
+    }
+
+    public int stateIndex(String state) {
+        Integer idx = stateIndex.get(state);
+        return idx == null ? -1 : idx.intValue();
+    }
+
+    public int symbolIndex(ObservationKey key) {
+        Integer idx = symbolIndex.get(key);
+        return idx == null ? -1 : idx.intValue();
+    }
+
+    public ObservationKey symbol(int m) {
+        return symbols[m];
+    }
+
+    public int stateCount(int i) {
+        return stateCounts[i];
+    }
+
+    public int successorCount(int i) {
+        return trans.rowStart[i + 1] - trans.rowStart[i];
+    }
+
+    public int successor(int i, int k) {
+        return trans.column[trans.rowStart[i] + k];
+    }
+
+    /**
+     * How many times the k-th successor of i followed it in training
+     */
+    public int successorTimes(int i, int k) {
+        return trans.count[trans.rowStart[i] + k];
+    }
+
+    public float successorLogProb(int i, int k) {
+        return trans.logProb[trans.rowStart[i] + k];
+    }
+
+    public boolean hasTransition(int i, int j) {
+        return trans.find(i, j) >= 0;
+    }
+
+    public float transitionDefaultLogProb(int i) {
+        return trans.defaultLogProb[i];
+    }
+
+    public float transitionLogProb(int i, int j) {
+        int e = trans.find(i, j);
+        return e < 0 ? trans.defaultLogProb[i] : trans.logProb[e];
+    }
+
+    public float emissionLogProb(int i, int m) {
+        int e = m < 0 ? -1 : emis.find(i, m);
+        return e < 0 ? emis.defaultLogProb[i] : emis.logProb[e];
+    }
+
+    public float emissionDefaultLogProb(int i) {
+        return emis.defaultLogProb[i];
+    }
+
+    /**
+     * Bytes used by the arrays, to compare with N * N tables
+     *
+     * @return
+     */
+    public long byteSize() {
+        // 3 ints per entry, row starts and defaults of both matrices, state counts
+        return 12L * (trans.column.length + emis.column.length) + 4L * (5 * states.length + 2);
+    }
+}
@@ -0,0 +1,56 @@
+package ML.Train;
+
+import ML.Classify.ObservationKey;
+
+/**
+ * A trained model read by sparse rows: for each state only the transitions
+ * and the Observations that were counted are stored, sorted by index, the
+ * other ones have the smoothed default probability of their row.
+ *
+ * MappedModel reads them from a model file, SparseModel keeps them in arrays.
+ * Either can be served in a ModelSnapshot.
+ */
+public interface SparseRows {
+
+    int getNbStates();
+
+    int getNbSymbols();
+
+    String stateName(int i);
+
+    /**
+     * @param state
+     * @return -1 if unknown
+     */
+    int stateIndex(String state);
+
+    /**
+     * @param key
+     * @return -1 if never seen in training
+     */
+    int symbolIndex(ObservationKey key);
+
+    int stateCount(int i);
+
+    /**
+     * Number of counted successors of state i, sorted by index
+     */
+    int successorCount(int i);
+
+    int successor(int i, int k);
+
+    float successorLogProb(int i, int k);
+
+    /**
+     * True when the transition i => j was counted
+     */
+    boolean hasTransition(int i, int j);
+
+    float transitionDefaultLogProb(int i);
+
+    float transitionLogProb(int i, int j);
+
+    float emissionLogProb(int i, int m);
+
+    float emissionDefaultLogProb(int i);
+}
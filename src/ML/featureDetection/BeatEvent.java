@@ -0,0 +1,49 @@
+package ML.featureDetection;
+
+/**
+ *
+ * A heart sound found in a recording or in a live stream, as published by
+ * BeatPublisher
+ */
+public class BeatEvent {
+
+    private final long sampleIndex;
+    private final boolean s1;
+    private final float treshold;
+    private final float beatsPerMinute;
+
+    /**
+     * @param sampleIndex position of the sound since the start of the
+     * recording
+     * @param s1 true for a S1, false for another heart sound
+     * @param treshold the treshold it crossed
+     * @param beatsPerMinute heart rate when it was found, 0 when not known yet
+     */
+    public BeatEvent(long sampleIndex, boolean s1, float treshold, float beatsPerMinute) {
+        this.sampleIndex = sampleIndex;
+        this.s1 = s1;
+        this.treshold = treshold;
+        this.beatsPerMinute = beatsPerMinute;
+    }
+
+    public long getSampleIndex() {
+        return sampleIndex;
+    }
+
+    public boolean isS1() {
+        return s1;
+    }
+
+    public float getTreshold() {
+        return treshold;
+    }
+
+    public float getBeatsPerMinute() {
+        return beatsPerMinute;
+    }
+
+    @Override
+    public String toString() {
+        return (s1 ? "S1 at " : "Sx at ") + sampleIndex + " (" + beatsPerMinute + " bpm)";
+    }
+}
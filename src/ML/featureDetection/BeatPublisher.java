@@ -0,0 +1,91 @@
+/*
+ * The beats used to come back only as lists, once the whole recording was
+ * processed (getMoreBeats, getProbableBeats). A BeatPublisher hands them to
+ * any number of Flow.Subscribers (the GUI, the recorder, a classifier) as
+ * they are found:
+ *
+ * - as the Listener of a StreamingBeatDetector, each sound is published when
+ *   the detector finds it
+ * - publish(FindBeats) publishes the beats of a processed recording, in the
+ *   order of the recording
+ *
+ * Each subscriber gets the events it asked for with request(n), the others
+ * wait in its buffer. When the buffer of a subscriber is full, submitting
+ * waits until it consumes: a slow subscriber slows the producer down instead
+ * of letting the events pile up. With a LiveBeatCapture that producer is the
+ * detection thread, the ring buffer of the capture absorbs the delay.
+ */
+package ML.featureDetection;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SubmissionPublisher;
+
+/**
+ *
+ * Flow.Publisher of the heart sounds found
+ */
+public class BeatPublisher extends SubmissionPublisher<BeatEvent> implements StreamingBeatDetector.Listener {
+
+    /**
+     * Subscribers are called on the common pool, each one buffers at most 256
+     * events
+     */
+    public BeatPublisher() {
+        this(ForkJoinPool.commonPool(), 256);
+    }
+
+    /**
+     * @param executor calls the subscribers
+     * @param bufferSize events buffered per subscriber, a power of two
+     */
+    public BeatPublisher(Executor executor, int bufferSize) {
+        super(executor, bufferSize);
+    }
+
+    /**
+     * Called by a StreamingBeatDetector
+     */
+    public void sound(long sampleIndex, boolean s1, float treshold, float beatsPerMinute) {
+        submit(new BeatEvent(sampleIndex, s1, treshold, beatsPerMinute));
+    }
+
+    /**
+     * Publish the beats calcBeat() found, S1 from the probable beats, the
+     * other heart sounds from the more beats, in the order of the recording.
+     * The publisher is not closed, so that more recordings can follow.
+     *
+     * @param cb
+     * @param samplingRate to give the heart rate
+     * @return the number of events published
+     */
+    public int publish(FindBeats cb, int samplingRate) {
+        int[] s1 = BeatTable.timeStamps(cb.getProbableBeats());
+        int[] more = BeatTable.timeStamps(cb.getMoreBeats());
+        float treshold = cb.getTreshHold();
+        int nb = 0;
+        int s = 0;
+        float bpm = 0;
+        for (int m = 0; m <= more.length; m++) {
+            int next = m < more.length ? more[m] : Integer.MAX_VALUE;
+            // the S1 before this sound, and the heart rate at each of them
+            while (s < s1.length && s1[s] <= next) {
+                if (s > 0 && s1[s] > s1[s - 1]) {
+                    bpm = 60f * samplingRate / (s1[s] - s1[s - 1]);
+                }
+                submit(new BeatEvent(s1[s], true, treshold, bpm));
+                nb++;
+                if (s1[s] == next) {
+                    // the same sound in both lists
+                    next = -1;
+                }
+                s++;
+            }
+            if (m < more.length && next >= 0) {
+                submit(new BeatEvent(more[m], false, treshold, bpm));
+                nb++;
+            }
+        }
+        return nb;
+    }
+}
@@ -0,0 +1,106 @@
+package ML.featureDetection;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * What FindBeats found in a recording, without the recording: the time stamps
+ * of its event lists and the values Segmentation reads from it.
+ *
+ * It is what PipelineCache keeps of the beat detection, FindBeats.restore()
+ * gives back a FindBeats that Segmentation can use as if calcBeat() was run.
+ *
+ */
+public class BeatTable {
+
+    int[] moreBeats;
+    int[] probableBeats;
+    int[] candidateBeats;
+    float aver;
+    float maxi;
+    float treshFind;
+    int noisyFile;
+    int shift;
+
+    BeatTable() {
+    }
+
+    /**
+     * Approximate memory used, for the cache budget
+     *
+     * @return
+     */
+    public long byteSize() {
+        return 64 + 4L * (moreBeats.length + probableBeats.length + candidateBeats.length);
+    }
+
+    public void write(DataOutput out) throws IOException {
+        writeInts(out, moreBeats);
+        writeInts(out, probableBeats);
+        writeInts(out, candidateBeats);
+        out.writeFloat(aver);
+        out.writeFloat(maxi);
+        out.writeFloat(treshFind);
+        out.writeInt(noisyFile);
+        out.writeInt(shift);
+    }
+
+    public static BeatTable read(DataInput in) throws IOException {
+        BeatTable t = new BeatTable();
+        t.moreBeats = readInts(in);
+        t.probableBeats = readInts(in);
+        t.candidateBeats = readInts(in);
+        t.aver = in.readFloat();
+        t.maxi = in.readFloat();
+        t.treshFind = in.readFloat();
+        t.noisyFile = in.readInt();
+        t.shift = in.readInt();
+        return t;
+    }
+
+    /**
+     * The time stamps of a list of events. The rough evaluation of the beat
+     * rate puts Integers in the lists instead of Events.
+     */
+    static int[] timeStamps(ArrayList events) {
+        int[] ts = new int[events.size()];
+        for (int idx = 0; idx < ts.length; idx++) {
+            Object e = events.get(idx);
+            if (e instanceof Event) {
+                ts[idx] = ((Event) e).timeStampValue().intValue();
+            } else {
+                ts[idx] = ((Integer) e).intValue();
+            }
+        }
+        return ts;
+    }
+
+    /**
+     * Events back from their time stamps, Segmentation only reads the time
+     * stamps
+     */
+    static ArrayList events(int[] ts, float treshold) {
+        ArrayList events = new ArrayList(ts.length);
+        for (int idx = 0; idx < ts.length; idx++) {
+            events.add(new Event(Integer.valueOf(ts[idx]), treshold, 0, 0));
+        }
+        return events;
+    }
+
+    private static void writeInts(DataOutput out, int[] v) throws IOException {
+        out.writeInt(v.length);
+        for (int idx = 0; idx < v.length; idx++) {
+            out.writeInt(v[idx]);
+        }
+    }
+
+    private static int[] readInts(DataInput in) throws IOException {
+        int[] v = new int[in.readInt()];
+        for (int idx = 0; idx < v.length; idx++) {
+            v[idx] = in.readInt();
+        }
+        return v;
+    }
+}
@@ -18,7 +18,6 @@
 package ML.featureDetection;
 
 import java.util.ArrayList;
-import java.util.BitSet;
 
 /**
  *
@@ -74,12 +73,23 @@ public class FindBeats {
      * @param data
      */
     private void averMax(float[] data) {
+        averMax(data, 0, data.length);
+    }
+
+    /**
+     * Find average in data[from..to[
+     *
+     * @param data
+     * @param from
+     * @param to
+     */
+    private void averMax(float[] data, int from, int to) {
         float absData;
-        int idx = 0;
+        int idx = from;
         float sum = 0;
 
         // find this file average
-        while (idx < data.length) {
+        while (idx < to) {
             absData = data[idx];
             if (absData < 0) {
                 absData = -absData;
@@ -95,7 +105,7 @@ public class FindBeats {
         }
 
         // find this file average
-        aver = sum / data.length;
+        aver = sum / (to - from);
     }
 
     /**
@@ -514,6 +524,45 @@ public class FindBeats {
         return normalizedData;
     }
 
+    /**
+     * What calcBeat() found, to be kept without this object
+     *
+     * @return
+     */
+    public BeatTable getBeatTable() {
+        BeatTable t = new BeatTable();
+        t.moreBeats = BeatTable.timeStamps(moreBeatEvents);
+        t.probableBeats = BeatTable.timeStamps(probableS1Beats);
+        t.candidateBeats = BeatTable.timeStamps(candidateBeats);
+        t.aver = aver;
+        t.maxi = maxi;
+        t.treshFind = treshFind;
+        t.noisyFile = noisyFile;
+        t.shift = eventShift;
+        return t;
+    }
+
+    /**
+     * A FindBeats as calcBeat() left it, without running it again
+     *
+     * @param data_norm the normalized data the table was found in
+     * @param t
+     * @return
+     */
+    public static FindBeats restore(float[] data_norm, BeatTable t) {
+        FindBeats cb = new FindBeats();
+        cb.normalizedData = data_norm;
+        cb.moreBeatEvents = BeatTable.events(t.moreBeats, t.treshFind);
+        cb.probableS1Beats = BeatTable.events(t.probableBeats, t.treshFind);
+        cb.candidateBeats = BeatTable.events(t.candidateBeats, t.treshFind);
+        cb.aver = t.aver;
+        cb.maxi = t.maxi;
+        cb.treshFind = t.treshFind;
+        cb.noisyFile = t.noisyFile;
+        cb.eventShift = t.shift;
+        return cb;
+    }
+
     /**
      * Average the past "windowLength" slots in "dataIn" before "idxGlbal" This
      * is because the number must be an average of past data
@@ -558,61 +607,61 @@ public class FindBeats {
      * It is supposed to be faster than FFT
      *
      */
-    public ArrayList beatSign(float[] data) {
-        // the signature is found
-        BitSet binary = new BitSet();
-
-        int jdx = 0;
-        float ave = 0, max = 0;
-        float treshold = 0;
-        // find this file average
-        averMax(data);
-        ave = aver;
-        max = maxi;
-
-        treshold = ((2 * ave) + max) / 3;
-
-        binary = betBitSlice(data, treshold);
-
-        // Now do the Run Limited Length algorithm
-        int j;
-        ArrayList reslt = new ArrayList();
+    public int[] beatSign(float[] data) {
+        return beatSign(data, 0, data.length);
+    }
 
-        // We start always with a count of "1" at index == "0"
-        int k = 0;
-        boolean a = binary.get(0);
-        while ((k < binary.size()) && (a != true)) {
-            a = binary.get(k);
-            k++;
-        }
+    /**
+     * Signature of data[from..to[, without copying the beat out of data
+     *
+     * @param data
+     * @param from
+     * @param to
+     * @return the run lengths
+     */
+    public int[] beatSign(float[] data, int from, int to) {
+        return RunLengthSignature.encodeRuns(data, from, to, beatSignTreshold(data, from, to));
+    }
 
-        for (int i = 0; i < binary.length(); i++) {
-            int runLength = 1;
-            while (i + 1 < binary.length() && binary.get(i) == binary.get(i + 1)) {
-                runLength++;
-                i++;
-            }
+    /**
+     * Same as above, but the runs are written in a reusable buffer
+     *
+     * @param data
+     * @param from
+     * @param to
+     * @param out
+     * @return the number of runs
+     */
+    public int beatSign(float[] data, int from, int to, RunLengthSignature out) {
+        return out.encode(data, from, to, beatSignTreshold(data, from, to));
+    }
 
-            reslt.add(new Integer(runLength));
-        }
-        return reslt;
+    /**
+     * Number of runs of the signature of data[from..to[, the signature itself
+     * is not built
+     *
+     * @param data
+     * @param from
+     * @param to
+     * @param treshold as given by beatSignTreshold
+     * @return
+     */
+    public int beatSignLength(float[] data, int from, int to, float treshold) {
+        return RunLengthSignature.countRuns(data, from, to, treshold);
     }
 
-    private BitSet betBitSlice(float[] data, float treshold) {
-        // treshold is a value between the average value and the max value
-        BitSet binary = new BitSet();
-        // 
-        int idx = 0;
-        // find this file average
-        while (idx < data.length) {
-            if (data[idx] > treshold) {
-                binary.set(idx);
-            } else {
-                binary.clear(idx);
-            }
-            idx++;
-        }
-        return binary;
+    /**
+     * treshold is a value between the average value and the max value
+     *
+     * @param data
+     * @param from
+     * @param to
+     * @return
+     */
+    public float beatSignTreshold(float[] data, int from, int to) {
+        // find this beat average
+        averMax(data, from, to);
+        return ((2 * aver) + maxi) / 3;
     }
 
     private ArrayList findNextSounds(float[] data, float treshold, int nbBeats) {
@@ -0,0 +1,152 @@
+package ML.featureDetection;
+
+import Misc.sampled.AudioMethodsGeneral;
+import Misc.sampled.FloatRingBuffer;
+import java.util.concurrent.locks.LockSupport;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.Mixer;
+import javax.sound.sampled.TargetDataLine;
+
+/**
+ * Feeds a StreamingBeatDetector from a capture line, for instance a
+ * stethoscope connected to the sound card.
+ *
+ * The line is read in chunks of 20 ms on its own thread, which only copies
+ * the samples into a lock free ring buffer, so it is never slowed down by the
+ * detection and the line does not overrun. A second thread takes the samples
+ * from the ring buffer and runs the detector.
+ *
+ */
+public class LiveBeatCapture {
+
+    private static final int CHUNK_MS = 20;
+    // seconds of audio the ring buffer holds while the detection is late
+    private static final int RING_SECONDS = 4;
+
+    private final AudioFormat format;
+    private final Mixer mixer;
+    private final StreamingBeatDetector detector;
+    private final FloatRingBuffer ring;
+    private TargetDataLine line;
+    private Thread capture;
+    private Thread detection;
+    private volatile boolean running = false;
+
+    /**
+     * Capture from the default line
+     *
+     * @param samplingRate
+     * @param listener receives the sounds, on the detection thread
+     */
+    public LiveBeatCapture(int samplingRate, StreamingBeatDetector.Listener listener) {
+        this(samplingRate, null, listener);
+    }
+
+    /**
+     * @param samplingRate
+     * @param mixer the mixer to capture from, null for the default one
+     * @param listener receives the sounds, on the detection thread
+     */
+    public LiveBeatCapture(int samplingRate, Mixer mixer, StreamingBeatDetector.Listener listener) {
+        // mono, signed 16 bits, little endian
+        format = new AudioFormat(samplingRate, 16, 1, true, false);
+        this.mixer = mixer;
+        detector = new StreamingBeatDetector(samplingRate, listener);
+        ring = new FloatRingBuffer(RING_SECONDS * samplingRate);
+    }
+
+    /**
+     * Open the line and start detecting
+     *
+     * @throws Exception when no line can be opened with this format
+     */
+    public synchronized void start() throws Exception {
+        if (running) {
+            return;
+        }
+        AudioMethodsGeneral amg = new AudioMethodsGeneral();
+        line = mixer == null ? amg.getTargetDataLine(format, null) : amg.getTargetDataLine(format, mixer, null);
+        running = true;
+        capture = new Thread(new Runnable() {
+            public void run() {
+                capture();
+            }
+        }, "Live beat capture");
+        detection = new Thread(new Runnable() {
+            public void run() {
+                detect();
+            }
+        }, "Live beat detection");
+        capture.setDaemon(true);
+        detection.setDaemon(true);
+        // the line must be emptied in time, the detection can be late
+        capture.setPriority(Thread.MAX_PRIORITY);
+        detection.start();
+        capture.start();
+    }
+
+    /**
+     * Stop detecting and close the line
+     *
+     * @throws InterruptedException
+     */
+    public void stop() throws InterruptedException {
+        Thread c, d;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            line.stop();
+            c = capture;
+            d = detection;
+        }
+        c.join();
+        d.join();
+        line.close();
+    }
+
+    /**
+     * Samples dropped because the detection was late
+     *
+     * @return
+     */
+    public long getDroppedSamples() {
+        return ring.getOverrunSamples();
+    }
+
+    public FloatRingBuffer getRingBuffer() {
+        return ring;
+    }
+
+    private void capture() {
+        int frame = format.getFrameSize();
+        byte[] buf = new byte[Math.max(frame, (int) (format.getSampleRate() * CHUNK_MS / 1000) * frame)];
+        while (running) {
+            int n = line.read(buf, 0, buf.length);
+            if (n > 0) {
+                ring.writePcm16(buf, 0, n);
+            } else if (!line.isActive()) {
+                break;
+            }
+        }
+    }
+
+    private void detect() {
+        float[] chunk = new float[Math.max(1, (int) (format.getSampleRate() * CHUNK_MS / 1000))];
+        // once the capture stopped, what is left in the ring buffer is still processed
+        while (running || ring.available() > 0) {
+            int n = ring.read(chunk, 0, chunk.length);
+            if (n > 0) {
+                detector.process(chunk, 0, n);
+            } else {
+                // nothing yet, wait a quarter of a chunk
+                LockSupport.parkNanos(CHUNK_MS * 250000L);
+            }
+        }
+    }
+
+    public StreamingBeatDetector getDetector() {
+        return detector;
+    }
+}
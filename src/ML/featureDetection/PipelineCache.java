@@ -0,0 +1,443 @@
+/*
+ * A recording is often classified several times: it is opened again in the
+ * GUI, or scored against a new model. The normalized signal, the beats found
+ * in it and the Observations never change for the same samples and the same
+ * settings, so each stage result is kept, in memory and on disk.
+ *
+ * Each result is addressed by the SHA-256 of the samples, the stage name and
+ * the stage settings (heart rate, codebook, pipeline version). The memory
+ * level is an LRU bounded in bytes, the disk level is a directory:
+ *
+ *   <key>.norm   the normalized samples, their count then the floats
+ *   <key>.beats  the BeatTable of FindBeats
+ *   obs/         the Observations, in a FeatureStore
+ *
+ * Several requests can miss the same recording at the same time: each one
+ * writes its own temporary file and moves it atomically in place, so a
+ * reader finds the old file, the new one, or none, never half a file.
+ *
+ * Observations are kept in an ObservationStore and handed out as new objects,
+ * so a caller that renames them does not change the cache.
+ */
+package ML.featureDetection;
+
+import ML.Classify.Observation;
+import ML.Classify.ObservationStore;
+import ML.Classify.PDefFeats;
+import ML.Train.FeatureStore;
+import ML.Train.Segmentation;
+import ML.Train.SignatureCodebook;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *
+ * Two level cache of the stages of the processing of a recording
+ */
+public class PipelineCache {
+
+    private final long budget;
+    private final File dir;
+    private final FeatureStore obsStore;
+
+    // access ordered, the eldest entry is the least recently used
+    private final LinkedHashMap<String, Sized> memory = new LinkedHashMap<String, Sized>(64, 0.75f, true);
+    private long resident = 0;
+
+    private long memoryHits = 0;
+    private long diskHits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * @param memoryBudget bytes kept in memory
+     * @param dir where results are kept between runs, null for memory only
+     */
+    public PipelineCache(long memoryBudget, File dir) {
+        budget = memoryBudget;
+        this.dir = dir;
+        if (dir != null) {
+            dir.mkdirs();
+            obsStore = new FeatureStore(new File(dir, "obs"));
+        } else {
+            obsStore = null;
+        }
+    }
+
+    /**
+     * The key of a recording content
+     *
+     * @param samples
+     * @param samplingRate
+     * @return
+     */
+    public static String sampleKey(float[] samples, int samplingRate) {
+        MessageDigest md = FeatureStore.sha256();
+        ByteBuffer b = ByteBuffer.allocate(1 << 14);
+        b.putInt(samplingRate);
+        for (int idx = 0; idx < samples.length; idx++) {
+            if (b.remaining() < 4) {
+                md.update(b.array(), 0, b.position());
+                b.clear();
+            }
+            b.putFloat(samples[idx]);
+        }
+        md.update(b.array(), 0, b.position());
+        return FeatureStore.hex(md.digest());
+    }
+
+    /**
+     * The normalized samples of a recording
+     *
+     * @param sampleKey as given by sampleKey()
+     * @param samples
+     * @param norm
+     * @return
+     */
+    public float[] normalized(String sampleKey, float[] samples, NormalizeBeat norm) {
+        String key = stageKey(sampleKey, "norm", "");
+        float[] data = (float[]) fromMemory(key);
+        if (data == null) {
+            data = readFloats(key);
+            if (data == null) {
+                data = norm.normalizeAmplitude(samples);
+                writeFloats(key, data);
+            }
+            toMemory(key, data, 16 + 4L * data.length);
+        }
+        return data;
+    }
+
+    /**
+     * FindBeats as calcBeat() leaves it
+     *
+     * @param sampleKey
+     * @param data_norm the normalized samples
+     * @param samplingRate
+     * @param heartRate
+     * @return
+     */
+    public FindBeats beats(String sampleKey, float[] data_norm, int samplingRate, int heartRate) {
+        String key = stageKey(sampleKey, "beats", samplingRate + "," + heartRate);
+        BeatTable t = (BeatTable) fromMemory(key);
+        if (t == null) {
+            t = readBeats(key);
+            if (t == null) {
+                FindBeats cb = new FindBeats();
+                cb.calcBeat(data_norm, samplingRate, heartRate);
+                t = cb.getBeatTable();
+                writeBeats(key, t);
+                toMemory(key, t, t.byteSize());
+                // this one already has its events, no need to restore it
+                return cb;
+            }
+            toMemory(key, t, t.byteSize());
+        }
+        return FindBeats.restore(data_norm, t);
+    }
+
+    /**
+     * The named Observations of a recording, new objects at each call
+     *
+     * @param sampleKey
+     * @param cb as given by beats()
+     * @param samplingRate
+     * @param heartRate the one given to beats()
+     * @param codebook may be null, the suffix is then size % 20
+     * @return
+     */
+    public ArrayList observations(String sampleKey, FindBeats cb, int samplingRate, int heartRate,
+            SignatureCodebook codebook) {
+        String key = stageKey(sampleKey, "obs", samplingRate + "," + heartRate + "," + variant(codebook));
+        ObservationStore store = (ObservationStore) fromMemory(key);
+        if (store == null) {
+            store = readObservations(key, codebook != null);
+            if (store == null) {
+                Segmentation segmt = new Segmentation(cb);
+                segmt.setLazySignatures(codebook == null);
+                segmt.segmentation(cb, samplingRate);
+                store = new ObservationStore(codebook != null, segmt.segmentedBeats.size());
+                for (int u = 0; u < segmt.segmentedBeats.size(); u++) {
+                    Observation obs = (Observation) segmt.segmentedBeats.get(u);
+                    obs.setNameSufx(SignatureCodebook.suffixFor(codebook, obs));
+                    store.add(obs);
+                }
+                store.trimToSize();
+                writeObservations(key, store);
+            }
+            toMemory(key, store, store.byteSize());
+        }
+        ArrayList obsList = new ArrayList(store.size());
+        for (int idx = 0; idx < store.size(); idx++) {
+            obsList.add(store.get(idx));
+        }
+        return obsList;
+    }
+
+    public synchronized long getMemoryHits() {
+        return memoryHits;
+    }
+
+    public synchronized long getDiskHits() {
+        return diskHits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Bytes currently kept in memory
+     *
+     * @return
+     */
+    public synchronized long getResidentBytes() {
+        return resident;
+    }
+
+    public synchronized double getHitRatio() {
+        long all = memoryHits + diskHits + misses;
+        return all == 0 ? 0 : (double) (memoryHits + diskHits) / all;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PipelineCache memory hits: " + memoryHits + " disk hits: " + diskHits
+                + " misses: " + misses + " evictions: " + evictions
+                + " resident: " + resident + "/" + budget + " bytes";
+    }
+
+    public synchronized void clearMemory() {
+        memory.clear();
+        resident = 0;
+    }
+
+    private synchronized Object fromMemory(String key) {
+        Sized v = memory.get(key);
+        if (v == null) {
+            return null;
+        }
+        memoryHits++;
+        return v.value;
+    }
+
+    private synchronized void toMemory(String key, Object value, long bytes) {
+        if (bytes > budget) {
+            return;
+        }
+        Sized old = memory.put(key, new Sized(value, bytes));
+        if (old != null) {
+            resident -= old.bytes;
+        }
+        resident += bytes;
+        Iterator<Sized> it = memory.values().iterator();
+        while (resident > budget && it.hasNext()) {
+            Sized eldest = it.next();
+            it.remove();
+            resident -= eldest.bytes;
+            evictions++;
+        }
+    }
+
+    private synchronized void countDisk(boolean hit) {
+        if (hit) {
+            diskHits++;
+        } else {
+            misses++;
+        }
+    }
+
+    private float[] readFloats(String key) {
+        File file = dir == null ? null : new File(dir, key + ".norm");
+        if (file == null || !file.isFile()) {
+            countDisk(false);
+            return null;
+        }
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel ch = raf.getChannel();
+                if (ch.size() < 4) {
+                    throw new IOException("Truncated " + file);
+                }
+                MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+                int n = buf.getInt(0);
+                if (n < 0 || 4 + 4L * n != ch.size()) {
+                    throw new IOException("Wrong length of " + file + ", " + ch.size() + " bytes for " + n + " samples");
+                }
+                float[] data = new float[n];
+                buf.position(4);
+                buf.asFloatBuffer().get(data);
+                countDisk(true);
+                return data;
+            } finally {
+                raf.close();
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(PipelineCache.class.getName()).log(Level.WARNING, null, ex);
+            countDisk(false);
+            return null;
+        }
+    }
+
+    private void writeFloats(String key, float[] data) {
+        if (dir == null) {
+            return;
+        }
+        File tmp = null;
+        try {
+            tmp = File.createTempFile(key + ".norm.", ".tmp", dir);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+            try {
+                out.writeInt(data.length);
+                for (int idx = 0; idx < data.length; idx++) {
+                    out.writeFloat(data[idx]);
+                }
+            } finally {
+                out.close();
+            }
+            moveInPlace(tmp, new File(dir, key + ".norm"));
+        } catch (IOException ex) {
+            deleteTemp(tmp);
+            Logger.getLogger(PipelineCache.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+
+    private BeatTable readBeats(String key) {
+        File file = dir == null ? null : new File(dir, key + ".beats");
+        if (file == null || !file.isFile()) {
+            countDisk(false);
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                BeatTable t = BeatTable.read(in);
+                countDisk(true);
+                return t;
+            } finally {
+                in.close();
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(PipelineCache.class.getName()).log(Level.WARNING, null, ex);
+            countDisk(false);
+            return null;
+        }
+    }
+
+    private void writeBeats(String key, BeatTable t) {
+        if (dir == null) {
+            return;
+        }
+        File tmp = null;
+        try {
+            tmp = File.createTempFile(key + ".beats.", ".tmp", dir);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                t.write(out);
+            } finally {
+                out.close();
+            }
+            moveInPlace(tmp, new File(dir, key + ".beats"));
+        } catch (IOException ex) {
+            deleteTemp(tmp);
+            Logger.getLogger(PipelineCache.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+
+    private ObservationStore readObservations(String key, boolean withSignatures) {
+        ObservationStore store = null;
+        if (obsStore != null) {
+            try {
+                store = obsStore.get(key, withSignatures, (PDefFeats) null);
+            } catch (IOException ex) {
+                Logger.getLogger(PipelineCache.class.getName()).log(Level.WARNING, null, ex);
+            }
+        }
+        countDisk(store != null);
+        return store;
+    }
+
+    private void writeObservations(String key, ObservationStore store) {
+        if (obsStore == null) {
+            return;
+        }
+        try {
+            obsStore.put(key, store);
+        } catch (IOException ex) {
+            Logger.getLogger(PipelineCache.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+
+    /**
+     * Replace file by tmp in one step, as FeatureStore.put
+     */
+    private static void moveInPlace(File tmp, File file) throws IOException {
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void deleteTemp(File tmp) {
+        if (tmp != null && tmp.exists()) {
+            tmp.delete();
+        }
+    }
+
+    private static String stageKey(String sampleKey, String stage, String params) {
+        String s = sampleKey + "|" + stage + "|" + params + "|p" + FeatureStore.PIPELINE_VERSION;
+        return FeatureStore.hex(FeatureStore.sha256().digest(s.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static String variant(SignatureCodebook codebook) {
+        if (codebook == null) {
+            return "size";
+        }
+        try {
+            return FeatureStore.fingerprint(codebook);
+        } catch (IOException ex) {
+            // written in memory, does not happen
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * A cached value and its size
+     */
+    private static class Sized {
+
+        final Object value;
+        final long bytes;
+
+        Sized(Object value, long bytes) {
+            this.value = value;
+            this.bytes = bytes;
+        }
+    }
+}
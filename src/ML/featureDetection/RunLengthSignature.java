@@ -0,0 +1,216 @@
+/*
+ * Run length encoding of a saturated heart beat, used as the beat signature
+ * of an Observation.
+ *
+ * The signal is compared to a treshold and each sample becomes a "0" or a "1",
+ * the signature is then the list of the lengths of the runs of identical bits.
+ * The first run starts at the first sample whatever its value, and the runs
+ * after the last sample above the treshold are not part of the signature.
+ *
+ * Saturation and run length encoding are done in one pass, without building
+ * the bit string.
+ */
+package ML.featureDetection;
+
+import java.util.Arrays;
+
+/**
+ *
+ * Signature encoder, it can be used through its static methods, or as a
+ * reusable buffer of fixed capacity so that encoding many beats does not
+ * allocate.
+ */
+public class RunLengthSignature {
+
+    private final int[] runs;
+    private int nbRuns;
+    private boolean truncated;
+
+    /**
+     * A reusable output that can hold up to "capacity" runs
+     *
+     * @param capacity
+     */
+    public RunLengthSignature(int capacity) {
+        runs = new int[capacity];
+        nbRuns = 0;
+        truncated = false;
+    }
+
+    /**
+     * Encode data[from..to[ into this buffer. Runs that do not fit in the
+     * buffer are still counted, but not stored, and the buffer is marked as
+     * truncated.
+     *
+     * @param data
+     * @param from
+     * @param to
+     * @param treshold
+     * @return the number of runs of the signature
+     */
+    public int encode(float[] data, int from, int to, float treshold) {
+        nbRuns = encode(data, from, to, treshold, runs);
+        truncated = nbRuns > runs.length;
+        return nbRuns;
+    }
+
+    /**
+     * The runs of the last encoding, only the first size() slots are valid
+     *
+     * @return
+     */
+    public int[] getRuns() {
+        return runs;
+    }
+
+    public int size() {
+        return Math.min(nbRuns, runs.length);
+    }
+
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * A copy of the runs of the last encoding, with the exact length
+     *
+     * @return
+     */
+    public int[] toArray() {
+        return Arrays.copyOf(runs, size());
+    }
+
+    /**
+     * Encode data[from..to[ into a new array of the exact length
+     *
+     * @param data
+     * @param from
+     * @param to
+     * @param treshold
+     * @return
+     */
+    public static int[] encodeRuns(float[] data, int from, int to, float treshold) {
+        int[] out = new int[countRuns(data, from, to, treshold)];
+        encode(data, from, to, treshold, out);
+        return out;
+    }
+
+    /**
+     * Only count the runs of data[from..to[, nothing is stored
+     *
+     * @param data
+     * @param from
+     * @param to
+     * @param treshold
+     * @return
+     */
+    public static int countRuns(float[] data, int from, int to, float treshold) {
+        return encode(data, from, to, treshold, null);
+    }
+
+    /**
+     * The single pass: saturate each sample and close a run each time the
+     * saturated value changes. Runs are written in "out" as long as there is
+     * room (out may be null to only count them).
+     *
+     * @return the number of runs, possibly larger than out.length
+     */
+    private static int encode(float[] data, int from, int to, float treshold, int[] out) {
+        int cnt = 0;
+        // number of runs up to the last run above treshold
+        int lastHigh = 0;
+        if (from >= to) {
+            return 0;
+        }
+        boolean bit = data[from] > treshold;
+        int runLength = 1;
+        for (int idx = from + 1; idx < to; idx++) {
+            boolean b = data[idx] > treshold;
+            if (b == bit) {
+                runLength++;
+                continue;
+            }
+            if ((out != null) && (cnt < out.length)) {
+                out[cnt] = runLength;
+            }
+            cnt++;
+            if (bit) {
+                lastHigh = cnt;
+            }
+            bit = b;
+            runLength = 1;
+        }
+        if (bit) {
+            if ((out != null) && (cnt < out.length)) {
+                out[cnt] = runLength;
+            }
+            cnt++;
+            lastHigh = cnt;
+        }
+        // the trailing runs below the treshold are not part of the signature
+        return lastHigh;
+    }
+
+    /**
+     * Pack runs as unsigned variable length integers (7 bits per byte), most
+     * runs are short so a signature usually takes one byte per run.
+     *
+     * @param runs
+     * @param count
+     * @return
+     */
+    public static byte[] toVarint(int[] runs, int count) {
+        int size = 0;
+        for (int idx = 0; idx < count; idx++) {
+            size += varintSize(runs[idx]);
+        }
+        byte[] out = new byte[size];
+        int pos = 0;
+        for (int idx = 0; idx < count; idx++) {
+            int v = runs[idx];
+            while ((v & ~0x7F) != 0) {
+                out[pos++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            out[pos++] = (byte) v;
+        }
+        return out;
+    }
+
+    /**
+     * Reverse of toVarint
+     *
+     * @param packed
+     * @return
+     */
+    public static int[] fromVarint(byte[] packed) {
+        int count = 0;
+        for (int idx = 0; idx < packed.length; idx++) {
+            if ((packed[idx] & 0x80) == 0) {
+                count++;
+            }
+        }
+        int[] runs = new int[count];
+        int v = 0, shift = 0, cnt = 0;
+        for (int idx = 0; idx < packed.length; idx++) {
+            v |= (packed[idx] & 0x7F) << shift;
+            if ((packed[idx] & 0x80) == 0) {
+                runs[cnt++] = v;
+                v = 0;
+                shift = 0;
+            } else {
+                shift += 7;
+            }
+        }
+        return runs;
+    }
+
+    private static int varintSize(int v) {
+        int size = 1;
+        while ((v & ~0x7F) != 0) {
+            v >>>= 7;
+            size++;
+        }
+        return size;
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * The detectors of FindBeats work on a whole recording: they compute the
+ * average and the maximum of the file, then walk it, and sometimes go back.
+ * This one follows the same idea (calcBeatFind) on a stream of samples that
+ * comes in chunks, for instance from a stethoscope on the sound card:
+ *
+ * - the bias is removed by a slow running mean, instead of the file average
+ * - the envelope is the average of the positive samples of the last 1/40 s
+ *   (as lastWinAve), kept in a ring buffer with a running sum
+ * - the average and the maximum of the file are replaced by a running average
+ *   and a decaying peak of the envelope, so the treshold follows the
+ *   recording level
+ * - a S1 is counted when the signal goes under the treshold while the
+ *   envelope is still above it, once per crossing, and not earlier than 0.5 s
+ *   after the previous S1. When no S1 came for 1.5 s the treshold is lowered,
+ *   like calcBeatFind does, but without going back in the signal.
+ * - between two S1, sounds over a lower treshold (as findNextSounds) are
+ *   reported as other heart sounds (S2, S3, S4) when they end
+ *
+ * All the state is kept between chunks, each sample is seen once, so the
+ * cost per second of audio is constant and a sound is reported at most
+ * the envelope window after it ended.
+ */
+package ML.featureDetection;
+
+/**
+ *
+ * Online beat detection over chunks of samples
+ */
+public class StreamingBeatDetector {
+
+    /**
+     * Receives the sounds found, on the thread calling process()
+     */
+    public interface Listener {
+
+        /**
+         * @param sampleIndex position of the sound since the start of the
+         * stream
+         * @param s1 true for a S1, false for another heart sound
+         * @param treshold the treshold it crossed
+         * @param beatsPerMinute current estimation of the heart rate, 0 until
+         * two S1 were found
+         */
+        void sound(long sampleIndex, boolean s1, float treshold, float beatsPerMinute);
+    }
+
+    // same weighting of average and maximum as calcBeatTreshold
+    private static final float TRESH_FIND = 6;
+    private static final float S1_EARLY = 0.5f;    // seconds
+    private static final float S1_LATE = 1.5f;
+    private static final float LOWER = 0.85f;
+    private static final float MIN_GAIN = 0.2f;
+    private static final float HYSTERESIS = 0.9f;
+
+    private final int samplingRate;
+    private final Listener listener;
+
+    // bias, average of the positive samples, peak of the envelope
+    private final float biasRate;
+    private final float averRate;
+    private final float peakDecay;
+    private float bias = 0;
+    private float aver = 0;
+    private float peak = 0;
+    // lowered when S1 come late, back to 1 when they come in time
+    private float gain = 1;
+
+    // envelope: positive samples of the last window
+    private final float[] window;
+    private int winPos = 0;
+    // a double, a float running sum drifts away from the window after a few
+    // million samples of adding and removing
+    private double winSum = 0;
+    private int winCount = 0;
+
+    private long position = 0;
+    private boolean s1Counted = false;
+    // a sound lasts while the envelope is above the lower treshold
+    private boolean inSound = false;
+    private boolean soundHadS1 = false;
+    private long soundStart = 0;
+    private long lastS1 = -1;
+    private final long early;
+    private final long late;
+    private float interval = 0;
+    private long nbS1 = 0;
+    private long nbOther = 0;
+
+    /**
+     * @param samplingRate
+     * @param listener
+     */
+    public StreamingBeatDetector(int samplingRate, Listener listener) {
+        this.samplingRate = samplingRate;
+        this.listener = listener;
+        window = new float[Math.max(samplingRate / 40, 1)];
+        biasRate = 1f / samplingRate;               // about 1 s
+        averRate = 1f / (4f * samplingRate);        // about 4 s
+        peakDecay = (float) Math.exp(Math.log(0.5) / (3.0 * samplingRate)); // half in 3 s
+        early = (long) (S1_EARLY * samplingRate);
+        late = (long) (S1_LATE * samplingRate);
+    }
+
+    /**
+     * Process the next chunk of the stream
+     *
+     * @param samples
+     * @param off
+     * @param len
+     */
+    public void process(float[] samples, int off, int len) {
+        for (int idx = off; idx < off + len; idx++) {
+            step(samples[idx]);
+        }
+    }
+
+    /**
+     * Process the next chunk of signed 16 bits little endian mono PCM, as a
+     * capture line gives it
+     *
+     * @param pcm
+     * @param off
+     * @param len in bytes, even
+     */
+    public void processPcm16(byte[] pcm, int off, int len) {
+        for (int idx = off; idx + 1 < off + len; idx += 2) {
+            int v = (pcm[idx] & 0xFF) | (pcm[idx + 1] << 8);
+            step(v / 32768f);
+        }
+    }
+
+    private void step(float raw) {
+        bias += (raw - bias) * biasRate;
+        float x = raw - bias;
+
+        float old = window[winPos];
+        if (old > 0) {
+            winSum -= old;
+            winCount--;
+            if (winCount == 0) {
+                // nothing left in the window, drop what rounding left over
+                winSum = 0;
+            }
+        }
+        float pos = x > 0 ? x : 0;
+        window[winPos] = pos;
+        if (pos > 0) {
+            winSum += pos;
+            winCount++;
+        }
+        winPos = winPos + 1 == window.length ? 0 : winPos + 1;
+        float envelope = winCount > 0 ? (float) (winSum / winCount) : x;
+
+        // running level, as averMax over the samples seen
+        aver += (pos - aver) * averRate;
+        peak *= peakDecay;
+        if (envelope > peak) {
+            peak = envelope;
+        }
+        float s1Treshold = gain * (aver + (TRESH_FIND * peak)) / (TRESH_FIND + 1);
+        // the envelope peaks lower than the samples, hence half way for the
+        // other sounds instead of the (ave + 2 max) / 3 of findNextSounds
+        float otherTreshold = gain * (aver + peak) / 2;
+
+        // no S1 for too long, the treshold is probably too high
+        long since = position - (lastS1 >= 0 ? lastS1 : 0);
+        if (since > late && since % late == 0) {
+            gain = Math.max(gain * LOWER, MIN_GAIN);
+        }
+
+        // once counted, a crossing counts again only after going back up
+        if (x > s1Treshold && s1Counted && envelope < s1Treshold) {
+            s1Counted = false;
+        }
+
+        if (!inSound && envelope > otherTreshold) {
+            inSound = true;
+            soundHadS1 = false;
+            soundStart = position;
+        }
+
+        // the first half second only sets the level
+        if (x < s1Treshold && !s1Counted && envelope > s1Treshold && position >= early
+                && (lastS1 < 0 || position - lastS1 >= early)) {
+            s1Counted = true;
+            soundHadS1 = true;
+            if (lastS1 >= 0) {
+                long diff = position - lastS1;
+                interval = interval == 0 ? diff : 0.8f * interval + 0.2f * diff;
+                if (diff <= late) {
+                    gain = Math.min(gain / LOWER, 1f);
+                }
+            }
+            lastS1 = position;
+            nbS1++;
+            listener.sound(position, true, s1Treshold, getBeatsPerMinute());
+        }
+
+        // a sound that ended without being a S1 is another heart sound
+        if (inSound && envelope < HYSTERESIS * otherTreshold) {
+            inSound = false;
+            if (!soundHadS1 && lastS1 >= 0) {
+                nbOther++;
+                listener.sound(soundStart, false, otherTreshold, getBeatsPerMinute());
+            }
+        }
+        position++;
+    }
+
+    /**
+     * Heart rate from the recent S1 intervals, 0 until two S1 were found
+     *
+     * @return
+     */
+    public float getBeatsPerMinute() {
+        return interval == 0 ? 0 : 60f * samplingRate / interval;
+    }
+
+    /**
+     * Number of samples processed since the start
+     *
+     * @return
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    public long getNbS1() {
+        return nbS1;
+    }
+
+    public long getNbOtherSounds() {
+        return nbOther;
+    }
+
+    public int getSamplingRate() {
+        return samplingRate;
+    }
+}
@@ -38,12 +38,23 @@
 package ML.featureDetection;
 
 import ML.Classify.Observation;
+import ML.Classify.ObservationStore;
 import ML.Classify.PDefFeats;
+import ML.Train.FeatureStore;
 import ML.Train.Segmentation;
+import ML.Train.SignatureCodebook;
+import Misc.sampled.AudioSamples;
+import Misc.sampled.AudioSamplesCache;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.concurrent.SubmissionPublisher;
 
 public class TrainOne {
 
+    // when not null, the suffix of the Observations is their codebook symbol
+    private SignatureCodebook codebook = null;
+
     /**
      * Basic constructor that sets the definition and dependencies (and their
      * offsets) of this feature.
@@ -53,6 +64,43 @@ public class TrainOne {
         String description = "Train the classifier on given set of files.";
     }
 
+    /**
+     * Use a trained codebook instead of "size % 20" for the suffix of the
+     * Observations
+     *
+     * @param cb
+     */
+    public void setCodebook(SignatureCodebook cb) {
+        codebook = cb;
+    }
+
+    /**
+     * The heart rate given to FindBeats, from the number of beats and the
+     * duration given with the recording, 0 to let FindBeats estimate it
+     *
+     * @param predefFeatures
+     * @return
+     */
+    public static int heartRate(PDefFeats predefFeatures) {
+        if (predefFeatures.nbBeats.intValue() != 0) {
+            return (predefFeatures.nbBeats.intValue() * 60) / predefFeatures.duration.intValue();
+        }
+        return 0;
+    }
+
+    /**
+     * The key of the Observations of a recording in a FeatureStore, with all
+     * the settings of this TrainOne that change them
+     *
+     * @param recording
+     * @param predefFeatures
+     * @return
+     * @throws IOException
+     */
+    public String recordKey(File recording, PDefFeats predefFeatures) throws IOException {
+        return FeatureStore.recordKey(FeatureStore.contentHash(recording), heartRate(predefFeatures), codebook);
+    }
+
     /**
      * Extracts this feature from the given samples at the given sampling rate
      * and given the other feature values.
@@ -72,7 +120,28 @@ public class TrainOne {
     )
             throws Exception {
 
-        int heart_rate = 0 ; 
+        FindBeats cb = detectBeats(samples, sampling_rate, predefFeatures, norm);
+        return segment(cb, sampling_rate, predefFeatures);
+    }
+
+    /**
+     * First half of extractFeature(): normalize and find the beats
+     *
+     * @param samples
+     * @param sampling_rate
+     * @param predefFeatures
+     * @param norm
+     * @return
+     * @throws java.lang.Exception
+     */
+    public FindBeats detectBeats(
+            float[] samples,
+            float sampling_rate,
+            PDefFeats predefFeatures,
+            NormalizeBeat norm
+    )
+            throws Exception {
+
         // find features
         int smplingRate = (int) sampling_rate;
 
@@ -85,11 +154,38 @@ public class TrainOne {
         FindBeats cb = new FindBeats();
         
         // calculate beat rate
-        if(predefFeatures.nbBeats.intValue() != 0)  {
-            heart_rate = (predefFeatures.nbBeats.intValue() * 60) / predefFeatures.duration.intValue();
-        }
+        int heart_rate = heartRate(predefFeatures) ;
         
         cb.calcBeat1(data_norm, smplingRate, heart_rate);        
+        return cb;
+    }
+
+    /**
+     * Second half of extractFeature(): the named Observations of the beats
+     *
+     * @param cb as given by detectBeats()
+     * @param sampling_rate
+     * @param predefFeatures
+     * @return
+     */
+    public ArrayList segment(FindBeats cb, float sampling_rate, PDefFeats predefFeatures) {
+        return segment(cb, sampling_rate, predefFeatures, null);
+    }
+
+    /**
+     * Same as above, each Observation is also given to the subscribers of
+     * publisher as soon as it is complete. The publisher is not closed, so
+     * that the Observations of several recordings can follow each other.
+     *
+     * @param cb
+     * @param sampling_rate
+     * @param predefFeatures
+     * @param publisher null to only return the list
+     * @return
+     */
+    public ArrayList segment(FindBeats cb, float sampling_rate, PDefFeats predefFeatures,
+            SubmissionPublisher<Observation> publisher) {
+        int smplingRate = (int) sampling_rate;
 
         /**
          *
@@ -106,6 +202,14 @@ public class TrainOne {
          */
         Segmentation segmt = new Segmentation(cb);
 
+        // without codebook only the length of the signatures is used below
+        segmt.setLazySignatures(codebook == null);
+        if (publisher != null) {
+            // the Observations are named when they are published
+            segmt.setPublisher(publisher, codebook, predefFeatures);
+            segmt.segmentation(cb, smplingRate);
+            return segmt.segmentedBeats;
+        }
         segmt.segmentation(cb, smplingRate);
         
         // Add suffix to Observations names
@@ -114,6 +218,57 @@ public class TrainOne {
         return segmt.segmentedBeats;
     }
 
+    /**
+     * Same as above for a recording file, the audio is only decoded and
+     * processed when its Observations are not already in the feature store.
+     *
+     * @param recording
+     * @param predefFeatures
+     * @param norm
+     * @param store where the Observations are kept between trainings
+     * @param withSignatures false when only the signature lengths are needed
+     * @return
+     * @throws java.lang.Exception
+     */
+    public ObservationStore extractFeature(
+            File recording,
+            PDefFeats predefFeatures,
+            NormalizeBeat norm,
+            FeatureStore store,
+            boolean withSignatures
+    )
+            throws Exception {
+
+        String hash = recordKey(recording, predefFeatures);
+        ObservationStore obs = store.get(hash, withSignatures, predefFeatures);
+        if (obs == null) {
+            AudioSamples audio = AudioSamplesCache.shared().get(recording, false);
+            FindBeats cb = detectBeats(audio.getSamplesMixedDown(), audio.getSamplingRate(), predefFeatures, norm);
+            ArrayList beats = segment(cb, audio.getSamplingRate(), predefFeatures);
+            // the store always keeps the signatures, so the same file serves both cases
+            makeSignatures(beats, cb);
+            ObservationStore full = new ObservationStore(true, beats.size());
+            full.addAll(beats);
+            store.put(hash, full);
+            obs = store.get(hash, withSignatures, predefFeatures);
+        }
+        return obs;
+    }
+
+    /**
+     * Make the signatures that segment() left lazy (no codebook), from the
+     * normalized data of the recording, for a store that keeps them
+     *
+     * @param beats as given by segment()
+     * @param cb the one given to segment()
+     */
+    public static void makeSignatures(ArrayList beats, FindBeats cb) {
+        float[] data = cb.getNormalizedData();
+        for (int u = 0; u < beats.size(); u++) {
+            ((Observation) beats.get(u)).getSign(data);
+        }
+    }
+
     /*
     It uses the adaptive Huffman compression algorithm as its pattern detection engine. 
     Let us say that we are comparing file A and file B. 
@@ -138,12 +293,7 @@ public class TrainOne {
         // This because otherwise having only four kind of "Observation" is not very helpful
         for (int u = 0; u < segmentedBeats.size(); u++) {
             Observation obs = (Observation) segmentedBeats.get(u);
-            int size = obs.getSign().size();
-            // Lets have no more than 20 Observations
-//            float fact = (float) (size / 20.0) ;
-            int deux = (int) (size % 20);
-            String suffix = String.valueOf(deux) ;
-            obs.setNameSufx(suffix);
+            obs.setNameSufx(SignatureCodebook.suffixFor(codebook, obs));
             
             // add predefined features
             obs.addPreDef(predefFeatures) ;
@@ -0,0 +1,348 @@
+package Misc.Tools;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A chain of named stages, each one with its own threads, linked by bounded
+ * queues.
+ *
+ * A stage that is slower than the previous one fills its input queue, and the
+ * previous stage then waits: no stage runs far ahead of the others and the
+ * memory used is bounded. While one stage reads files, the next ones keep the
+ * processors busy with the recordings already read.
+ *
+ * Results are given to the sink in the order of the inputs, whatever the
+ * order in which the workers finish them. At most "capacity" inputs are
+ * in flight at a time, including the ones waiting to be put back in order.
+ *
+ * Usage:
+ *
+ *   Pipeline p = new Pipeline(32)
+ *       .stage("decode", decode, Pipeline.ioExecutor(), 4)
+ *       .stage("beats", beats, cpu, nbCpu)
+ *       .stage("segment", segment, cpu, nbCpu);
+ *   p.run(files, sink);
+ *
+ */
+public class Pipeline
+{
+
+    /**
+     * One step of the processing
+     */
+    public interface Stage
+    {
+
+        Object apply(Object in)
+            throws Exception;
+    }
+
+    /**
+     * Receives the results, in the order of the inputs, on one thread at a
+     * time
+     */
+    public interface Sink
+    {
+
+        void accept(Object in, Object out)
+            throws Exception;
+    }
+
+    // end of the inputs, one per worker
+    private static final Item END = new Item(-1L, null, null);
+
+    private final int capacity;
+    private final ArrayList<StageRunner> stages = new ArrayList<StageRunner>();
+
+    /**
+     * @param capacity inputs in flight at most, it bounds the reorder buffer
+     */
+    public Pipeline(int capacity)
+    {
+        this.capacity = Math.max(capacity, 1);
+    }
+
+    /**
+     * Add a stage after the previous ones
+     *
+     * @param name used in the statistics
+     * @param stage
+     * @param executor runs the workers of this stage, it is not shut down
+     * @param workers number of inputs processed at the same time
+     * @return this
+     */
+    public Pipeline stage(String name, Stage stage, ExecutorService executor, int workers)
+    {
+        stages.add(new StageRunner(name, stage, executor, Math.max(workers, 1)));
+        return this;
+    }
+
+    /**
+     * An executor for stages that wait on files: a virtual thread per task
+     * when the JVM has them (Java 21), else a cached thread pool
+     *
+     * @return
+     */
+    public static ExecutorService ioExecutor()
+    {
+        try
+        {
+            return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch(Exception ex)
+        {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Process all the inputs. It returns when the last result was given to
+     * the sink, or throws the first exception of a stage or of the sink.
+     *
+     * @param inputs
+     * @param sink
+     * @throws Exception
+     */
+    public void run(Iterable inputs, Sink sink)
+        throws Exception
+    {
+        if(stages.isEmpty())
+            throw new IllegalStateException("Pipeline without stage");
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final Semaphore inFlight = new Semaphore(capacity);
+        // a stage hands at most one waiting input per worker of the next one,
+        // plus room for the end marks
+        ArrayList<BlockingQueue<Item>> queues = new ArrayList<BlockingQueue<Item>>();
+        for(int s = 0; s < stages.size(); s++)
+            queues.add(new ArrayBlockingQueue<Item>(2 * workersOf(s)));
+        queues.add(new ArrayBlockingQueue<Item>(capacity + 1));
+
+        for(int s = 0; s < stages.size(); s++)
+            ((StageRunner)stages.get(s)).start(queues.get(s), queues.get(s + 1), s + 1 < stages.size() ? workersOf(s + 1) : 1, failure);
+
+        // the sink runs on this thread, the inputs are fed by another one
+        final BlockingQueue<Item> first = queues.get(0);
+        final int firstWorkers = workersOf(0);
+        final Iterator it = inputs.iterator();
+        Thread feeder = new Thread(new Runnable() {
+
+            public void run()
+            {
+                long seq = 0L;
+                try
+                {
+                    while(it.hasNext() && failure.get() == null)
+                    {
+                        inFlight.acquire();
+                        Object in = it.next();
+                        first.put(new Item(seq++, in, in));
+                    }
+                }
+                catch(Throwable t)
+                {
+                    failure.compareAndSet(null, t);
+                }
+                finally
+                {
+                    putEnds(first, firstWorkers);
+                }
+            }
+        }, "Pipeline feeder");
+        feeder.setDaemon(true);
+        feeder.start();
+
+        BlockingQueue<Item> last = queues.get(stages.size());
+        PriorityQueue<Item> reorder = new PriorityQueue<Item>();
+        long next = 0L;
+        try
+        {
+            while(true)
+            {
+                Item item = last.take();
+                if(item == END)
+                    break;
+                reorder.add(item);
+                while(!reorder.isEmpty() && reorder.peek().seq == next)
+                {
+                    Item ready = reorder.poll();
+                    next++;
+                    inFlight.release();
+                    if(failure.get() == null)
+                        sink.accept(ready.input, ready.value);
+                }
+            }
+        }
+        catch(Throwable t)
+        {
+            failure.compareAndSet(null, t);
+            // let the stages drain
+            inFlight.release(capacity);
+            while(last.take() != END)
+                inFlight.release();
+        }
+        feeder.join();
+        Throwable t = failure.get();
+        if(t instanceof Exception)
+            throw (Exception)t;
+        if(t instanceof Error)
+            throw (Error)t;
+    }
+
+    /**
+     * Per stage: inputs processed, time spent working and time spent
+     * waiting for room in the next queue
+     *
+     * @return
+     */
+    public String getStats()
+    {
+        StringBuilder sb = new StringBuilder();
+        for(int s = 0; s < stages.size(); s++)
+        {
+            StageRunner r = (StageRunner)stages.get(s);
+            sb.append(r.name).append(": ").append(r.done.get()).append(" done, busy ").append(r.busyNanos.get() / 1000000L).append(" ms, blocked ").append(r.blockedNanos.get() / 1000000L).append(" ms\n");
+        }
+        return sb.toString();
+    }
+
+    public List<String> getStageNames()
+    {
+        ArrayList<String> names = new ArrayList<String>();
+        for(int s = 0; s < stages.size(); s++)
+            names.add(((StageRunner)stages.get(s)).name);
+        return names;
+    }
+
+    public long getBusyNanos(int stage)
+    {
+        return ((StageRunner)stages.get(stage)).busyNanos.get();
+    }
+
+    public long getBlockedNanos(int stage)
+    {
+        return ((StageRunner)stages.get(stage)).blockedNanos.get();
+    }
+
+    private int workersOf(int s)
+    {
+        return ((StageRunner)stages.get(s)).workers;
+    }
+
+    private static void putEnds(BlockingQueue<Item> queue, int n)
+    {
+        for(int i = 0; i < n; i++)
+            while(true)
+                try
+                {
+                    queue.put(END);
+                    break;
+                }
+                catch(InterruptedException ex)
+                {
+                    // the end marks must get through, or the next stage waits forever
+                }
+    }
+
+    /**
+     * An input and its current value, numbered in input order
+     */
+    private static class Item
+        implements Comparable<Item>
+    {
+
+        final long seq;
+        final Object input;
+        final Object value;
+
+        Item(long seq, Object input, Object value)
+        {
+            this.seq = seq;
+            this.input = input;
+            this.value = value;
+        }
+
+        public int compareTo(Item o)
+        {
+            return seq < o.seq ? -1 : seq != o.seq ? 1 : 0;
+        }
+    }
+
+    private static class StageRunner
+    {
+
+        final String name;
+        final Stage stage;
+        final ExecutorService executor;
+        final int workers;
+        final AtomicLong done = new AtomicLong();
+        final AtomicLong busyNanos = new AtomicLong();
+        final AtomicLong blockedNanos = new AtomicLong();
+
+        StageRunner(String name, Stage stage, ExecutorService executor, int workers)
+        {
+            this.name = name;
+            this.stage = stage;
+            this.executor = executor;
+            this.workers = workers;
+        }
+
+        void start(final BlockingQueue<Item> in, final BlockingQueue<Item> out, final int nextWorkers, final AtomicReference<Throwable> failure)
+        {
+            // the last worker to stop passes the end on to the next stage
+            final AtomicInteger running = new AtomicInteger(workers);
+            for(int w = 0; w < workers; w++)
+                executor.execute(new Runnable() {
+
+                    public void run()
+                    {
+                        try
+                        {
+                            while(true)
+                            {
+                                Item item = in.take();
+                                if(item == END)
+                                    break;
+                                Object value = null;
+                                if(failure.get() == null)
+                                    try
+                                    {
+                                        long t0 = System.nanoTime();
+                                        value = stage.apply(item.value);
+                                        busyNanos.addAndGet(System.nanoTime() - t0);
+                                        done.incrementAndGet();
+                                    }
+                                    catch(Throwable t)
+                                    {
+                                        failure.compareAndSet(null, t);
+                                    }
+                                // after a failure items still flow, so that the feeder is released
+                                long t1 = System.nanoTime();
+                                out.put(new Item(item.seq, item.input, value));
+                                blockedNanos.addAndGet(System.nanoTime() - t1);
+                            }
+                        }
+                        catch(InterruptedException ex)
+                        {
+                            failure.compareAndSet(null, ex);
+                        }
+                        finally
+                        {
+                            if(running.decrementAndGet() == 0)
+                                putEnds(out, nextWorkers);
+                        }
+                    }
+                });
+        }
+    }
+}
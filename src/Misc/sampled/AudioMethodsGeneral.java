@@ -12,7 +12,6 @@ import javax.sound.sampled.*;
 public class AudioMethodsGeneral
 {
 
-        AudioMethodsGeneral goglAMG = new AudioMethodsGeneral() ;
         AudioMethodsDSP goglAMDSP = new AudioMethodsDSP() ;
 
     public AudioMethodsGeneral()
@@ -0,0 +1,272 @@
+package Misc.sampled;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Decoded recordings, shared by all the places that open the same file.
+ *
+ * Entries are keyed by the canonical path, the modification time and length
+ * of the file and the decode options, so a file changed on disk is decoded
+ * again. The total size of the samples is bounded, the least recently used
+ * recordings are dropped first.
+ *
+ * When several threads ask for the same file at the same time, only one
+ * decodes it and the others wait for its result.
+ *
+ * The AudioSamples given are shared: they must not be modified, use
+ * getCopyOfAudioSamples() before normalizing or setting samples.
+ */
+public class AudioSamplesCache
+{
+
+    private static final AudioSamplesCache shared = new AudioSamplesCache(256L << 20);
+
+    private final long budget;
+    // access ordered, the eldest entry is the least recently used
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+    private long resident = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * @param budgetBytes bytes of samples kept
+     */
+    public AudioSamplesCache(long budgetBytes)
+    {
+        budget = budgetBytes;
+    }
+
+    /**
+     * The cache used by default, 256 MB
+     *
+     * @return
+     */
+    public static AudioSamplesCache shared()
+    {
+        return shared;
+    }
+
+    /**
+     * Same as new AudioSamples(audio_file, path, normalize_if_clipped), but
+     * decoded only once
+     *
+     * @param audio_file
+     * @param normalize_if_clipped
+     * @return
+     * @throws Exception as the constructor of AudioSamples
+     */
+    public AudioSamples get(final File audio_file, final boolean normalize_if_clipped)
+        throws Exception
+    {
+        if(!audio_file.exists())
+            throw new Exception((new StringBuilder()).append("File ").append(audio_file.getName()).append(" does not exist.").toString());
+        Key key = new Key(audio_file.getCanonicalPath(), audio_file.lastModified(), audio_file.length(), normalize_if_clipped);
+        Entry entry;
+        boolean loader = false;
+        synchronized(this)
+        {
+            entry = entries.get(key);
+            if(entry != null)
+            {
+                hits++;
+            } else
+            {
+                misses++;
+                entry = new Entry(new FutureTask<AudioSamples>(new Callable<AudioSamples>() {
+
+                    public AudioSamples call()
+                        throws Exception
+                    {
+                        return new AudioSamples(audio_file, audio_file.getPath(), normalize_if_clipped);
+                    }
+                }));
+                entries.put(key, entry);
+                loader = true;
+            }
+        }
+        if(loader)
+            entry.task.run();
+        AudioSamples audio;
+        try
+        {
+            audio = entry.task.get();
+        }
+        catch(ExecutionException ex)
+        {
+            // a failed decode is not kept, the next call tries again
+            synchronized(this)
+            {
+                if(entries.get(key) == entry)
+                    entries.remove(key);
+            }
+            if(ex.getCause() instanceof Exception)
+                throw (Exception)ex.getCause();
+            throw ex;
+        }
+        if(loader)
+            synchronized(this)
+            {
+                // it may have been evicted while it was decoded
+                if(entries.get(key) == entry)
+                {
+                    entry.bytes = byteSize(audio);
+                    resident += entry.bytes;
+                    evict(key);
+                }
+            }
+        return audio;
+    }
+
+    /**
+     * Forget a file, for instance when it is known to have changed
+     *
+     * @param audio_file
+     */
+    public synchronized void invalidate(File audio_file)
+    {
+        String path;
+        try
+        {
+            path = audio_file.getCanonicalPath();
+        }
+        catch(IOException ex)
+        {
+            path = audio_file.getAbsolutePath();
+        }
+        Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+        while(it.hasNext())
+        {
+            Map.Entry<Key, Entry> e = it.next();
+            if(e.getKey().path.equals(path))
+            {
+                resident -= e.getValue().bytes;
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized void clear()
+    {
+        entries.clear();
+        resident = 0;
+    }
+
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    public synchronized long getEvictions()
+    {
+        return evictions;
+    }
+
+    public synchronized double getHitRatio()
+    {
+        long all = hits + misses;
+        return all != 0 ? (double)hits / (double)all : 0.0D;
+    }
+
+    /**
+     * Bytes of samples currently kept
+     *
+     * @return
+     */
+    public synchronized long getResidentBytes()
+    {
+        return resident;
+    }
+
+    public synchronized String toString()
+    {
+        return (new StringBuilder()).append("AudioSamplesCache hits: ").append(hits).append(" misses: ").append(misses).append(" hit ratio: ").append(getHitRatio()).append(" evictions: ").append(evictions).append(" resident: ").append(resident).append("/").append(budget).append(" bytes").toString();
+    }
+
+    /**
+     * Drop the least recently used recordings until the budget is met, but
+     * never the one just loaded
+     */
+    private void evict(Key keep)
+    {
+        Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+        while(resident > budget && it.hasNext())
+        {
+            Map.Entry<Key, Entry> e = it.next();
+            Entry victim = e.getValue();
+            // still decoding, its size is not known yet
+            if(e.getKey().equals(keep) || !victim.task.isDone())
+                continue;
+            resident -= victim.bytes;
+            it.remove();
+            evictions++;
+        }
+    }
+
+    private static long byteSize(AudioSamples audio)
+    {
+        long n = audio.getNumberSamplesPerChannel();
+        long bytes = 4L * n;
+        if(audio.getNumberChannels() > 1)
+            bytes += 4L * n * (long)audio.getNumberChannels();
+        return bytes;
+    }
+
+    private static class Key
+    {
+
+        final String path;
+        final long modified;
+        final long length;
+        final boolean normalize;
+
+        Key(String path, long modified, long length, boolean normalize)
+        {
+            this.path = path;
+            this.modified = modified;
+            this.length = length;
+            this.normalize = normalize;
+        }
+
+        public boolean equals(Object o)
+        {
+            if(!(o instanceof Key))
+                return false;
+            Key k = (Key)o;
+            return path.equals(k.path) && modified == k.modified && length == k.length && normalize == k.normalize;
+        }
+
+        public int hashCode()
+        {
+            int h = path.hashCode();
+            h = 31 * h + (int)(modified ^ modified >>> 32);
+            h = 31 * h + (int)(length ^ length >>> 32);
+            return 31 * h + (normalize ? 1 : 0);
+        }
+    }
+
+    private static class Entry
+    {
+
+        final FutureTask<AudioSamples> task;
+        long bytes;
+
+        Entry(FutureTask<AudioSamples> task)
+        {
+            this.task = task;
+            bytes = 0L;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package Misc.sampled;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Samples handed from one producer thread (reading a capture line) to one
+ * consumer thread (the detection), without lock and without allocation.
+ *
+ * The capacity is a power of two, positions grow forever and are masked to
+ * index the array. The producer only writes the tail, the consumer only the
+ * head, each one publishes its position with a release store after copying
+ * the samples, so the other side never sees a position before the samples.
+ *
+ * The producer never waits: when the buffer is full the samples that do not
+ * fit are dropped and counted as overrun. A read that finds nothing is
+ * counted as underrun.
+ *
+ * The tail with the fields only the producer writes, and the head with the
+ * fields only the consumer writes, are on their own cache lines, so the two
+ * threads do not slow each other down writing their own side.
+ */
+public class FloatRingBuffer extends FloatRingHead
+{
+
+    private static final AtomicLongFieldUpdater<FloatRingTail> TAIL = AtomicLongFieldUpdater.newUpdater(FloatRingTail.class, "tail");
+    private static final AtomicLongFieldUpdater<FloatRingHead> HEAD = AtomicLongFieldUpdater.newUpdater(FloatRingHead.class, "head");
+
+    // padding after the consumer side
+    long p20, p21, p22, p23, p24, p25, p26, p27;
+
+    private final float buffer[];
+    private final int mask;
+
+    /**
+     * @param minCapacity rounded up to a power of two
+     */
+    public FloatRingBuffer(int minCapacity)
+    {
+        if(minCapacity < 1 || minCapacity > 1 << 30)
+            throw new IllegalArgumentException((new StringBuilder()).append("Wrong capacity ").append(minCapacity).toString());
+        int capacity = Integer.highestOneBit(minCapacity);
+        if(capacity < minCapacity)
+            capacity <<= 1;
+        buffer = new float[capacity];
+        mask = capacity - 1;
+    }
+
+    public int capacity()
+    {
+        return buffer.length;
+    }
+
+    /**
+     * Samples written and not read yet
+     *
+     * @return
+     */
+    public int available()
+    {
+        // the head first: read the other way, the consumer may pass the
+        // tail we read before we read the head
+        long h = head;
+        long n = tail - h;
+        return (int)Math.max(0L, Math.min(n, (long)buffer.length));
+    }
+
+    /**
+     * Producer: append samples, the ones that do not fit are dropped
+     *
+     * @param src
+     * @param off
+     * @param len
+     * @return the number of samples written
+     */
+    public int write(float src[], int off, int len)
+    {
+        long t = tail;
+        int n = room(t, len);
+        int idx = (int)t & mask;
+        int first = Math.min(n, buffer.length - idx);
+        System.arraycopy(src, off, buffer, idx, first);
+        System.arraycopy(src, off + first, buffer, 0, n - first);
+        TAIL.lazySet(this, t + (long)n);
+        return n;
+    }
+
+    /**
+     * Producer: append signed 16 bits little endian mono PCM, converted to
+     * floats in place
+     *
+     * @param pcm
+     * @param off
+     * @param len in bytes
+     * @return the number of samples written
+     */
+    public int writePcm16(byte pcm[], int off, int len)
+    {
+        long t = tail;
+        int n = room(t, len / 2);
+        for(int i = 0; i < n; i++)
+        {
+            int b = off + 2 * i;
+            int v = pcm[b] & 0xff | pcm[b + 1] << 8;
+            buffer[(int)(t + (long)i) & mask] = (float)v / 32768F;
+        }
+        TAIL.lazySet(this, t + (long)n);
+        return n;
+    }
+
+    /**
+     * Consumer: take the oldest samples
+     *
+     * @param dst
+     * @param off
+     * @param len at most that many samples are read
+     * @return the number of samples read, 0 when empty
+     */
+    public int read(float dst[], int off, int len)
+    {
+        long h = head;
+        if(tailCache - h < (long)len)
+            tailCache = tail;
+        int n = (int)Math.min((long)len, tailCache - h);
+        if(n <= 0)
+        {
+            underruns++;
+            return 0;
+        }
+        int idx = (int)h & mask;
+        int first = Math.min(n, buffer.length - idx);
+        System.arraycopy(buffer, idx, dst, off, first);
+        System.arraycopy(buffer, 0, dst, off + first, n - first);
+        HEAD.lazySet(this, h + (long)n);
+        return n;
+    }
+
+    /**
+     * Samples dropped because the consumer was late
+     *
+     * @return
+     */
+    public long getOverrunSamples()
+    {
+        return overrunSamples;
+    }
+
+    /**
+     * Writes that could not store all their samples
+     *
+     * @return
+     */
+    public long getOverruns()
+    {
+        return overruns;
+    }
+
+    /**
+     * Reads that found the buffer empty
+     *
+     * @return
+     */
+    public long getUnderruns()
+    {
+        return underruns;
+    }
+
+    /**
+     * How many of len samples fit, counting the overrun
+     */
+    private int room(long t, int len)
+    {
+        long free = (long)buffer.length - (t - headCache);
+        if(free < (long)len)
+        {
+            headCache = head;
+            free = (long)buffer.length - (t - headCache);
+        }
+        int n = (int)Math.min((long)len, free);
+        if(n < len)
+        {
+            overruns++;
+            overrunSamples += len - n;
+        }
+        return n;
+    }
+}
+
+// The classes below only lay out the fields of FloatRingBuffer: padding,
+// producer side, padding, consumer side, padding. Fields of a super class
+// come first in memory.
+
+class FloatRingPad0
+{
+    long p00, p01, p02, p03, p04, p05, p06, p07;
+}
+
+class FloatRingTail extends FloatRingPad0
+{
+    volatile long tail;
+    // written by the producer only
+    volatile long overrunSamples = 0L;
+    volatile long overruns = 0L;
+    // producer side cache of the head, to read the volatile head less often
+    long headCache = 0L;
+}
+
+class FloatRingPad1 extends FloatRingTail
+{
+    long p10, p11, p12, p13, p14, p15, p16, p17;
+}
+
+class FloatRingHead extends FloatRingPad1
+{
+    volatile long head;
+    // written by the consumer only
+    volatile long underruns = 0L;
+    // consumer side cache of the tail
+    long tailCache = 0L;
+}